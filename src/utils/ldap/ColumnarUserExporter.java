@@ -0,0 +1,244 @@
+package utils.ldap;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exporta utilizadores para um formato binrio colunar compacto escrevendo diretamente num canal NIO.</p>
+ * Os utilizadores so agrupados em blocos de rowsPerBlock linhas. Em cada bloco os valores de cada coluna so escritos juntos, pelo que a memria utilizada depende apenas do tamanho do bloco e um leitor pode saltar as colunas que no lhe interessam.</p>
+ * Formato (inteiros em varint, 7 bits por byte; Strings em UTF-8 precedidas do seu tamanho):
+ * <pre>
+ * "LDAPCOL1"
+ * nmero de colunas, nome de cada coluna (dn, friendlyName e os UserAttributes)
+ * por cada bloco: nmero de linhas, e por cada coluna: tamanho em bytes da coluna seguido, por cada linha, de (nmero de valores + 1, ou 0 se null) e dos valores
+ * 0 (bloco sem linhas que marca o fim do ficheiro)
+ * </pre>
+ * Os atributos multi-valued so exportados com todos os seus valores.
+ *
+ * @author E000161
+ *
+ */
+public class ColumnarUserExporter implements UserExporter {
+
+	private static final byte[] MAGIC = { 'L', 'D', 'A', 'P', 'C', 'O', 'L', '1' };
+
+	private final WritableByteChannel channel;
+	private final int rowsPerBlock;
+	private final ByteBuffer header;
+	private List<String> columns;
+	private ByteBuffer[] columnBuffers;
+	private int rowCount;
+	private boolean isFinished;
+
+	/**
+	 * Exportador com blocos de 4096 utilizadores.
+	 *
+	 * @param channel
+	 */
+	public ColumnarUserExporter(WritableByteChannel channel) {
+		this(channel, 4096);
+	}
+
+	/**
+	 * Exportador com blocos de rowsPerBlock utilizadores.
+	 *
+	 * @param channel
+	 * @param rowsPerBlock
+	 */
+	public ColumnarUserExporter(WritableByteChannel channel, int rowsPerBlock) {
+		if (rowsPerBlock < 1) {
+			throw new IllegalArgumentException("rowsPerBlock must be at least 1.");
+		}
+		this.channel = channel;
+		this.rowsPerBlock = rowsPerBlock;
+		this.header = ByteBuffer.allocate(10);
+		this.columns = null;
+		this.columnBuffers = null;
+		this.rowCount = 0;
+		this.isFinished = false;
+	}
+
+	/**
+	 * Escreve o cabealho do ficheiro com o nome das colunas: dn, friendlyName e o nome de cada UserAttribute. S  escrito uma vez (ver UserExporter.writeHeader()).
+	 */
+	public void writeHeader(List<UserAttribute> userAttributes) throws IOException {
+		List<String> names = new ArrayList<String>();
+		if (userAttributes != null) {
+			for (UserAttribute userAttribute : userAttributes) {
+				names.add(userAttribute.getName());
+			}
+		}
+		if (columns != null) {
+			if (!columns.equals(names)) {
+				throw new IllegalStateException("Header already written with columns " + columns + ".");
+			}
+			return;
+		}
+		if (isFinished) {
+			throw new IllegalStateException("Export already finished.");
+		}
+		columns = names;
+		columnBuffers = new ByteBuffer[columns.size() + 2];
+		for (int i = 0; i < columnBuffers.length; i++) {
+			columnBuffers[i] = ByteBuffer.allocate(4096);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		buffer.put(MAGIC);
+		buffer = putVarInt(buffer, columns.size() + 2);
+		buffer = putString(buffer, "dn");
+		buffer = putString(buffer, "friendlyName");
+		for (String column : columns) {
+			buffer = putString(buffer, column);
+		}
+		buffer.flip();
+		writeFully(buffer);
+	}
+
+	/**
+	 * Adiciona o utilizador ao bloco atual, escrevendo o bloco quando este ficar completo.
+	 */
+	public void write(User user) throws IOException {
+		if (columns == null) {
+			throw new IllegalStateException("writeHeader() must be invoked before write().");
+		}
+		if (isFinished) {
+			throw new IllegalStateException("Export already finished.");
+		}
+		putSingleValue(0, user.getDistinguishedName());
+		putSingleValue(1, user.getFriendlyName());
+		for (int i = 0; i < columns.size(); i++) {
+			UserAttribute userAttribute = user.getUserAttributeByName(columns.get(i));
+			if (userAttribute == null) {
+				putSingleValue(i + 2, null);
+			} else if (userAttribute.getType() == AttributeType.SINGLE_VALUED) {
+				putSingleValue(i + 2, userAttribute.getSingleValue());
+			} else {
+				List<String> values = userAttribute.getMultiValues();
+				ByteBuffer buffer = putVarInt(columnBuffers[i + 2], values == null ? 0 : values.size() + 1);
+				if (values != null) {
+					for (String value : values) {
+						buffer = putString(buffer, value);
+					}
+				}
+				columnBuffers[i + 2] = buffer;
+			}
+		}
+		rowCount++;
+		if (rowCount == rowsPerBlock) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Escreve o bloco atual, mesmo que incompleto. Podem continuar a ser escritos utilizadores, que ficam num novo bloco.
+	 */
+	public void flush() throws IOException {
+		if (rowCount > 0) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Escreve o bloco atual e a marca de fim do ficheiro, sem fechar o canal. Depois de invocado no  possvel escrever mais utilizadores.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (columns == null || isFinished) {
+			return;
+		}
+		flush();
+		header.clear();
+		putVarInt(header, 0);
+		header.flip();
+		writeFully(header);
+		isFinished = true;
+	}
+
+	/**
+	 * Termina a exportao (ver finish()) e fecha o canal.
+	 */
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		if (isFinished) {
+			throw new IllegalStateException("Export already finished.");
+		}
+		header.clear();
+		putVarInt(header, rowCount);
+		header.flip();
+		writeFully(header);
+		for (ByteBuffer buffer : columnBuffers) {
+			buffer.flip();
+			header.clear();
+			putVarInt(header, buffer.remaining());
+			header.flip();
+			writeFully(header);
+			writeFully(buffer);
+			buffer.clear();
+		}
+		rowCount = 0;
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private void putSingleValue(int column, String value) throws UnsupportedEncodingException {
+		ByteBuffer buffer = columnBuffers[column];
+		if (value == null) {
+			buffer = putVarInt(buffer, 0);
+		} else {
+			buffer = putVarInt(buffer, 2);
+			buffer = putString(buffer, value);
+		}
+		columnBuffers[column] = buffer;
+	}
+
+	/**
+	 * Escreve uma String em UTF-8 precedida do seu tamanho. Devolve o buffer (que pode ter sido aumentado).
+	 */
+	private static ByteBuffer putString(ByteBuffer buffer, String value) throws UnsupportedEncodingException {
+		byte[] bytes = value.getBytes("UTF-8");
+		buffer = putVarInt(buffer, bytes.length);
+		buffer = ensureCapacity(buffer, bytes.length);
+		buffer.put(bytes);
+		return buffer;
+	}
+
+	/**
+	 * Escreve um inteiro positivo em 1 a 5 bytes (7 bits por byte). Devolve o buffer (que pode ter sido aumentado).
+	 */
+	private static ByteBuffer putVarInt(ByteBuffer buffer, int value) {
+		buffer = ensureCapacity(buffer, 5);
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+		return buffer;
+	}
+
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int length) {
+		if (buffer.remaining() >= length) {
+			return buffer;
+		}
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+}
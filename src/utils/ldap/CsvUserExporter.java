@@ -0,0 +1,216 @@
+package utils.ldap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exporta utilizadores para CSV ou TSV (em UTF-8) escrevendo diretamente num canal NIO atravs de um buffer de tamanho fixo.</p>
+ * Os valores que contenham o delimitador, aspas ou mudanas de linha so escritos entre aspas (RFC 4180). Os atributos null so escritos como valores vazios.</p>
+ * Os atributos multi-valued so escritos conforme o MultiValueEncoding: JOINED_VALUES junta todos os valores com o valueSeparator (escapando o separador e o \ com \) e FIRST_VALUE escreve apenas o primeiro valor.
+ *
+ * @author E000161
+ *
+ */
+public class CsvUserExporter implements UserExporter {
+
+	public static final char CSV_DELIMITER = ',';
+	public static final char TSV_DELIMITER = '\t';
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final WritableByteChannel channel;
+	private final char delimiter;
+	private final MultiValueEncoding multiValueEncoding;
+	private final char valueSeparator;
+	private final CharsetEncoder encoder;
+	private final ByteBuffer buffer;
+	private final StringBuilder line;
+	private List<String> columns;
+
+	/**
+	 * Exportador CSV com os atributos multi-valued separados por |.
+	 *
+	 * @param channel
+	 */
+	public CsvUserExporter(WritableByteChannel channel) {
+		this(channel, CSV_DELIMITER, MultiValueEncoding.JOINED_VALUES, '|');
+	}
+
+	/**
+	 * Exportador com o delimitador indicado (CSV_DELIMITER, TSV_DELIMITER ou outro) e a forma de escrever os atributos multi-valued.
+	 *
+	 * @param channel
+	 * @param delimiter
+	 * @param multiValueEncoding
+	 * @param valueSeparator
+	 *            separador dos valores quando multiValueEncoding = JOINED_VALUES.
+	 */
+	public CsvUserExporter(WritableByteChannel channel, char delimiter, MultiValueEncoding multiValueEncoding, char valueSeparator) {
+		this.channel = channel;
+		this.delimiter = delimiter;
+		this.multiValueEncoding = multiValueEncoding;
+		this.valueSeparator = valueSeparator;
+		this.encoder = Charset.forName("UTF-8").newEncoder();
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.line = new StringBuilder(256);
+		this.columns = null;
+	}
+
+	/**
+	 * Escreve a linha de cabealho: dn, friendlyName e o nome de cada UserAttribute. S  escrita uma vez (ver UserExporter.writeHeader()).
+	 */
+	public void writeHeader(List<UserAttribute> userAttributes) throws IOException {
+		List<String> names = new ArrayList<String>();
+		if (userAttributes != null) {
+			for (UserAttribute userAttribute : userAttributes) {
+				names.add(userAttribute.getName());
+			}
+		}
+		if (columns != null) {
+			if (!columns.equals(names)) {
+				throw new IllegalStateException("Header already written with columns " + columns + ".");
+			}
+			return;
+		}
+		columns = names;
+		line.setLength(0);
+		line.append("dn").append(delimiter).append("friendlyName");
+		for (String column : columns) {
+			line.append(delimiter);
+			appendField(column);
+		}
+		writeLine();
+	}
+
+	/**
+	 * Escreve uma linha com o DN, o friendlyName e os atributos do utilizador pela ordem do cabealho.
+	 */
+	public void write(User user) throws IOException {
+		if (columns == null) {
+			throw new IllegalStateException("writeHeader() must be invoked before write().");
+		}
+		line.setLength(0);
+		appendField(user.getDistinguishedName());
+		line.append(delimiter);
+		appendField(user.getFriendlyName());
+		for (String column : columns) {
+			line.append(delimiter);
+			UserAttribute userAttribute = user.getUserAttributeByName(column);
+			if (userAttribute == null) {
+				continue;
+			}
+			if (userAttribute.getType() == AttributeType.SINGLE_VALUED) {
+				appendField(userAttribute.getSingleValue());
+			} else {
+				appendField(encodeMultiValues(userAttribute.getMultiValues()));
+			}
+		}
+		writeLine();
+	}
+
+	/**
+	 * Escreve no canal o contedo do buffer.
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Escreve o contedo do buffer e fecha o canal.
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private String encodeMultiValues(List<String> values) {
+		if (values == null || values.isEmpty()) {
+			return null;
+		}
+		if (multiValueEncoding == MultiValueEncoding.FIRST_VALUE) {
+			return values.get(0);
+		}
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < values.size(); i++) {
+			if (i > 0) {
+				result.append(valueSeparator);
+			}
+			String value = values.get(i);
+			for (int j = 0; j < value.length(); j++) {
+				char c = value.charAt(j);
+				if (c == valueSeparator || c == '\\') {
+					result.append('\\');
+				}
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Adiciona um valor  linha, entre aspas caso seja necessrio.
+	 *
+	 * @param value
+	 */
+	private void appendField(String value) {
+		if (value == null) {
+			return;
+		}
+		boolean mustQuote = false;
+		for (int i = 0; i < value.length() && !mustQuote; i++) {
+			char c = value.charAt(i);
+			mustQuote = (c == delimiter || c == '"' || c == '\r' || c == '\n');
+		}
+		if (!mustQuote) {
+			line.append(value);
+			return;
+		}
+		line.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				line.append('"');
+			}
+			line.append(c);
+		}
+		line.append('"');
+	}
+
+	/**
+	 * Codifica a linha em UTF-8 para o buffer, escrevendo o buffer no canal sempre que este fica cheio.
+	 *
+	 * @throws IOException
+	 */
+	private void writeLine() throws IOException {
+		line.append("\r\n");
+		CharBuffer chars = CharBuffer.wrap(line);
+		encoder.reset();
+		while (true) {
+			CoderResult result = encoder.encode(chars, buffer, true);
+			if (result.isOverflow()) {
+				flush();
+			} else if (result.isUnderflow()) {
+				break;
+			} else {
+				result.throwException();
+			}
+		}
+		while (encoder.flush(buffer).isOverflow()) {
+			flush();
+		}
+	}
+}
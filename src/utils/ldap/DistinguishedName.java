@@ -0,0 +1,497 @@
+package utils.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Representa um DistinguishedName (DN) LDAP segundo o RFC 4514.</p>
+ * Cada DN  um RDN (ex: uid=abc) que aponta para o DN pai (ex: ou=people,dc=GrupoCGD,dc=com). Os DNs pai so guardados numa rvore partilhada, pelo que os sufixos comuns a milhares de utilizadores s existem uma vez em memria. O DN em si (a folha) no  guardado na rvore e ocupa apenas o seu RDN.</p>
+ * O toString() devolve o DN tal como foi recebido (os RDNs so separados por vrgulas). A comparao (equals() e hashCode()) utiliza a forma normalizada (tipos e valores em minsculas, escapes resolvidos, espaos insignificantes removidos), pelo que DNs equivalentes so iguais mesmo que escritos de forma diferente.</p>
+ * Os ns da rvore que deixem de ser utilizados so libertados pelo garbage collector.
+ *
+ * @author E000161
+ *
+ */
+public final class DistinguishedName {
+
+	/**
+	 * DN vazio ("") que  a raiz de todos os DNs.
+	 */
+	public static final DistinguishedName ROOT = new DistinguishedName();
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Map<NodeKey, NodeReference> NODES = new HashMap<NodeKey, NodeReference>();
+	private static final ReferenceQueue<DistinguishedName> RELEASED_NODES = new ReferenceQueue<DistinguishedName>();
+
+	private final DistinguishedName parent;
+	// RDN tal como foi recebido, em UTF-8 para evitar o custo de um objecto String por DN
+	private final byte[] rdn;
+	private final int hash;
+
+	private DistinguishedName() {
+		this.parent = null;
+		this.rdn = new byte[0];
+		this.hash = 0;
+	}
+
+	private DistinguishedName(DistinguishedName parent, String rdn) {
+		this.parent = parent;
+		this.rdn = rdn.getBytes(UTF_8);
+		this.hash = parent.hash * 31 + normalizeRdn(rdn).hashCode();
+	}
+
+	/**
+	 * Obtem o DN a partir da sua representao em String (ex: uid=abc,ou=people,dc=GrupoCGD,dc=com).</p>
+	 * Caso o DN no seja vlido  lanada uma IllegalArgumentException.
+	 *
+	 * @param dn
+	 * @return
+	 */
+	public static DistinguishedName valueOf(String dn) {
+		List<String> rdns = splitRdns(dn);
+		if (rdns.isEmpty()) {
+			return ROOT;
+		}
+		DistinguishedName parent = ROOT;
+		for (int i = rdns.size() - 1; i > 0; i--) {
+			parent = parent.getSharedChild(trimValue(rdns.get(i)));
+		}
+		return parent.getChild(rdns.get(0));
+	}
+
+	/**
+	 * Obtem o DN filho deste DN com o RDN recebido (ex: ou=people,dc=com com o RDN uid=abc devolve uid=abc,ou=people,dc=com).
+	 *
+	 * @param rdn
+	 * @return
+	 */
+	public DistinguishedName getChild(String rdn) {
+		return new DistinguishedName(this, trimValue(rdn));
+	}
+
+	/**
+	 * Obtem o n partilhado da rvore para o filho com o RDN recebido (j sem espaos), criando-o caso ainda no exista.
+	 *
+	 * @param rdn
+	 * @return
+	 */
+	private DistinguishedName getSharedChild(String rdn) {
+		NodeKey key = new NodeKey(this, rdn);
+		synchronized (NODES) {
+			purgeReleasedNodes();
+			NodeReference ref = NODES.get(key);
+			DistinguishedName child = (ref == null ? null : ref.get());
+			if (child == null) {
+				child = new DistinguishedName(this, rdn);
+				NODES.put(key, new NodeReference(child, key));
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * Obtem o DN pai (ex: ou=people,dc=com para uid=abc,ou=people,dc=com). Devolve null para o DN vazio.
+	 *
+	 * @return
+	 */
+	public DistinguishedName getParent() {
+		return parent;
+	}
+
+	/**
+	 * Obtem o primeiro RDN do DN tal como foi recebido (ex: uid=abc para uid=abc,ou=people,dc=com).
+	 *
+	 * @return
+	 */
+	public String getRdn() {
+		return new String(rdn, UTF_8);
+	}
+
+	/**
+	 * Obtem o valor, sem escapes, do primeiro atributo do primeiro RDN do DN (ex: "Silva, Ana" para cn=Silva\, Ana,ou=people,dc=com). Devolve "" para o DN vazio.
+	 *
+	 * @return
+	 */
+	public String getRdnValue() {
+		if (parent == null) {
+			return "";
+		}
+		List<String> ava = splitAttributeValue(splitAttributeValues(getRdn()).get(0));
+		return unescapeValue(ava.get(1));
+	}
+
+	/**
+	 * Obtem o nmero de RDNs do DN. O DN vazio tem tamanho 0.
+	 *
+	 * @return
+	 */
+	public int size() {
+		int size = 0;
+		for (DistinguishedName node = parent; node != null; node = node.parent) {
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Devolve true se este DN estiver dentro da sub-rvore de ancestor (e for diferente dele).
+	 *
+	 * @param ancestor
+	 * @return
+	 */
+	public boolean isDescendantOf(DistinguishedName ancestor) {
+		int depth = size() - ancestor.size();
+		if (depth <= 0) {
+			return false;
+		}
+		DistinguishedName node = this;
+		for (int i = 0; i < depth; i++) {
+			node = node.parent;
+		}
+		return node.equals(ancestor);
+	}
+
+	/**
+	 * Devolve true se este DN for filho direto de parent.
+	 *
+	 * @param parent
+	 * @return
+	 */
+	public boolean isChildOf(DistinguishedName parent) {
+		return this.parent != null && this.parent.equals(parent);
+	}
+
+	/**
+	 * Obtem a forma normalizada do DN. Dois DNs equivalentes tm sempre a mesma forma normalizada.
+	 *
+	 * @return
+	 */
+	public String toNormalizedString() {
+		StringBuilder result = new StringBuilder();
+		for (DistinguishedName node = this; node.parent != null; node = node.parent) {
+			if (node != this) {
+				result.append(',');
+			}
+			result.append(normalizeRdn(node.getRdn()));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Dois DNs so iguais se forem equivalentes, ou seja, se tiverem a mesma forma normalizada (ver toNormalizedString()).
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof DistinguishedName) || hash != ((DistinguishedName) obj).hash) {
+			return false;
+		}
+		DistinguishedName node = this;
+		DistinguishedName other = (DistinguishedName) obj;
+		while (node != other) {
+			if (node.parent == null || other.parent == null) {
+				return false;
+			}
+			if (!Arrays.equals(node.rdn, other.rdn) && !normalizeRdn(node.getRdn()).equals(normalizeRdn(other.getRdn()))) {
+				return false;
+			}
+			node = node.parent;
+			other = other.parent;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Imprime o DN tal como foi recebido (ex: uid=abc,ou=people,dc=GrupoCGD,dc=com).
+	 */
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for (DistinguishedName node = this; node.parent != null; node = node.parent) {
+			if (node != this) {
+				result.append(',');
+			}
+			result.append(node.getRdn());
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Remove da rvore as referncias para ns que j foram libertados pelo garbage collector. Invocar com o lock de NODES.
+	 */
+	private static void purgeReleasedNodes() {
+		NodeReference ref;
+		while ((ref = (NodeReference) RELEASED_NODES.poll()) != null) {
+			if (NODES.get(ref.key) == ref) {
+				NODES.remove(ref.key);
+			}
+		}
+	}
+
+	/**
+	 * Separa um DN nos seus RDNs, do primeiro (mais especifico) para o ltimo. As vrgulas (ou ponto e vrgula) escapadas ou entre aspas no separam RDNs.
+	 *
+	 * @param dn
+	 * @return
+	 */
+	private static List<String> splitRdns(String dn) {
+		List<String> rdns = new ArrayList<String>();
+		if (dn.trim().length() == 0) {
+			return rdns;
+		}
+		int start = 0;
+		boolean inQuotes = false;
+		for (int i = 0; i < dn.length(); i++) {
+			char c = dn.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '"') {
+				inQuotes = !inQuotes;
+			} else if (!inQuotes && (c == ',' || c == ';')) {
+				rdns.add(dn.substring(start, i));
+				start = i + 1;
+			}
+		}
+		if (inQuotes) {
+			throw new IllegalArgumentException("Invalid distinguished name, unterminated quotes: " + dn);
+		}
+		rdns.add(dn.substring(start));
+		return rdns;
+	}
+
+	/**
+	 * Separa um RDN multi-valor (ex: cn=abc+uid=def) nos seus pares atributo=valor.
+	 *
+	 * @param rdn
+	 * @return
+	 */
+	private static List<String> splitAttributeValues(String rdn) {
+		List<String> avas = new ArrayList<String>(1);
+		int start = 0;
+		boolean inQuotes = false;
+		for (int i = 0; i < rdn.length(); i++) {
+			char c = rdn.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '"') {
+				inQuotes = !inQuotes;
+			} else if (!inQuotes && c == '+') {
+				avas.add(rdn.substring(start, i));
+				start = i + 1;
+			}
+		}
+		avas.add(rdn.substring(start));
+		return avas;
+	}
+
+	/**
+	 * Separa um par atributo=valor numa lista com o tipo (sem espaos) e o valor (ainda escapado).
+	 *
+	 * @param ava
+	 * @return
+	 */
+	private static List<String> splitAttributeValue(String ava) {
+		int equals = ava.indexOf('=');
+		String type = (equals < 0 ? "" : ava.substring(0, equals).trim());
+		if (type.length() == 0) {
+			throw new IllegalArgumentException("Invalid relative distinguished name, expected type=value: " + ava);
+		}
+		return Arrays.asList(type, ava.substring(equals + 1));
+	}
+
+	/**
+	 * Normaliza um RDN: tipos e valores em minsculas, escapes resolvidos, espaos insignificantes removidos e, nos RDNs multi-valor, pares ordenados.
+	 *
+	 * @param rdn
+	 * @return
+	 */
+	private static String normalizeRdn(String rdn) {
+		List<String> avas = splitAttributeValues(rdn);
+		String[] normalized = new String[avas.size()];
+		for (int i = 0; i < normalized.length; i++) {
+			List<String> ava = splitAttributeValue(avas.get(i));
+			String type = ava.get(0).toLowerCase(Locale.ENGLISH);
+			if (type.startsWith("oid.")) {
+				type = type.substring(4);
+			}
+			String value = trimValue(ava.get(1));
+			if (value.startsWith("#")) {
+				// Valor em hexadecimal (BER)  comparado em binrio
+				value = value.toLowerCase(Locale.ENGLISH);
+			} else {
+				value = escapeValue(unescapeValue(value).replaceAll("\\s+", " ").toLowerCase(Locale.ROOT));
+			}
+			normalized[i] = type + "=" + value;
+		}
+		if (normalized.length == 1) {
+			return normalized[0];
+		}
+		Arrays.sort(normalized);
+		StringBuilder result = new StringBuilder(normalized[0]);
+		for (int i = 1; i < normalized.length; i++) {
+			result.append('+').append(normalized[i]);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Resolve os escapes de um valor de RDN (\, ou \2C), incluindo sequncias UTF-8 em hexadecimal e valores entre aspas. Remove os espaos no escapados no inicio e no fim.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static String unescapeValue(String value) {
+		String trimmed = trimValue(value);
+		if (trimmed.indexOf('\\') < 0 && trimmed.indexOf('"') < 0) {
+			return trimmed;
+		}
+		if (trimmed.length() >= 2 && trimmed.startsWith("\"") && trimmed.endsWith("\"")) {
+			trimmed = trimmed.substring(1, trimmed.length() - 1);
+		}
+		StringBuilder result = new StringBuilder(trimmed.length());
+		ByteArrayOutputStream utf8 = new ByteArrayOutputStream();
+		for (int i = 0; i < trimmed.length(); i++) {
+			char c = trimmed.charAt(i);
+			if (c != '\\') {
+				flushUtf8(utf8, result);
+				result.append(c);
+			} else if (i + 1 >= trimmed.length()) {
+				throw new IllegalArgumentException("Invalid relative distinguished name value, dangling escape: " + value);
+			} else if (i + 2 < trimmed.length() && isHexDigit(trimmed.charAt(i + 1)) && isHexDigit(trimmed.charAt(i + 2))) {
+				utf8.write(Integer.parseInt(trimmed.substring(i + 1, i + 3), 16));
+				i += 2;
+			} else {
+				flushUtf8(utf8, result);
+				result.append(trimmed.charAt(++i));
+			}
+		}
+		flushUtf8(utf8, result);
+		return result.toString();
+	}
+
+	/**
+	 * Remove os espaos no inicio e os espaos no escapados no fim do valor.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static String trimValue(String value) {
+		int start = 0;
+		int end = value.length();
+		while (start < end && value.charAt(start) == ' ') {
+			start++;
+		}
+		while (end > start && value.charAt(end - 1) == ' ' && !isEscaped(value, end - 1)) {
+			end--;
+		}
+		return value.substring(start, end);
+	}
+
+	/**
+	 * Devolve true se o caracter na posio index for precedido de um nmero impar de barras de escape.
+	 *
+	 * @param value
+	 * @param index
+	 * @return
+	 */
+	private static boolean isEscaped(String value, int index) {
+		int backslashes = 0;
+		for (int i = index - 1; i >= 0 && value.charAt(i) == '\\'; i--) {
+			backslashes++;
+		}
+		return backslashes % 2 == 1;
+	}
+
+	private static void flushUtf8(ByteArrayOutputStream utf8, StringBuilder result) {
+		if (utf8.size() > 0) {
+			try {
+				result.append(utf8.toString("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			utf8.reset();
+		}
+	}
+
+	private static boolean isHexDigit(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	/**
+	 * Escapa um valor de RDN segundo o RFC 4514.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static String escapeValue(String value) {
+		StringBuilder result = null;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			boolean mustEscape = ",+\"\\<>;".indexOf(c) >= 0 || (i == 0 && (c == '#' || c == ' ')) || (i == value.length() - 1 && c == ' ');
+			if (mustEscape && result == null) {
+				result = new StringBuilder(value.length() + 4);
+				result.append(value, 0, i);
+			}
+			if (result != null) {
+				if (mustEscape) {
+					result.append('\\');
+				}
+				result.append(c);
+			}
+		}
+		return (result == null ? value : result.toString());
+	}
+
+	/**
+	 * Chave de um n da rvore: o n pai (comparado por identidade) e o RDN tal como foi recebido.
+	 */
+	private static final class NodeKey {
+
+		private final DistinguishedName parent;
+		private final String rdn;
+
+		NodeKey(DistinguishedName parent, String rdn) {
+			this.parent = parent;
+			this.rdn = rdn;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof NodeKey && ((NodeKey) obj).parent == parent && ((NodeKey) obj).rdn.equals(rdn);
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(parent) * 31 + rdn.hashCode();
+		}
+	}
+
+	/**
+	 * Referncia fraca para um n da rvore de forma a que os ns sem DNs filhos sejam libertados.
+	 */
+	private static final class NodeReference extends WeakReference<DistinguishedName> {
+
+		private final NodeKey key;
+
+		NodeReference(DistinguishedName node, NodeKey key) {
+			super(node, RELEASED_NODES);
+			this.key = key;
+		}
+	}
+}
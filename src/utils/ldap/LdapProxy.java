@@ -2,13 +2,21 @@ package utils.ldap;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
@@ -17,7 +25,6 @@ import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.Control;
-import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.PagedResultsControl;
 import javax.naming.ldap.PagedResultsResponseControl;
@@ -30,15 +37,22 @@ import javax.naming.ldap.PagedResultsResponseControl;
  */
 public class LdapProxy {
 
-	private String url;
+	private List<LdapReplica> replicas;
+	private boolean pinWritesToPrimary;
 	private String distinguishedName;
 	private String password;
 	private int searchLimit;
 	private boolean isPagedSearch;
-	private LdapContext ctx;
+	private int maxUsersInMemory;
+	private int connectTimeout;
+	private int readTimeout;
+	private long healthCheckInterval;
+	private Hashtable<String, String> environment;
+	private ScheduledExecutorService healthChecker;
 
 	/**
 	 * Criar um LDAPProxy. Recebe uma connection string ldap: url , dn e password assim como um limite de pesquisa para pesquisas paginadas. Utilizar 0 caso no seja necessrio pesquisas paginadas.</p>
+	 * O url pode conter vrias rplicas do mesmo diretrio separadas por vrgulas (ex: host1:389,host2:389). Neste caso as leituras so distribudas pelas rplicas e as escritas no ficam presas  primeira rplica.</p>
 	 * Para inicializar invocar primeiro o mtodo openConnection().</p>
 	 * Para finalizar invocar por ltimo o mtodo closeConnection().
 	 * 
@@ -49,10 +63,38 @@ public class LdapProxy {
 	 *            usar 0 caso no seja pretendido pesquisas paginadas.
 	 */
 	public LdapProxy(String url, String distinguishedName, String password, int searchLimit) {
-		this.url = url;
+		this(Arrays.asList(url.trim().split("\\s*,\\s*")), distinguishedName, password, searchLimit, false);
+	}
+
+	/**
+	 * Criar um LDAPProxy com vrias rplicas do mesmo diretrio. Cada url tem o formato host:porto.</p>
+	 * As leituras so feitas na rplica disponvel com menor latncia observada e menos pedidos em curso. Caso uma rplica falhe por problemas de comunicao a pesquisa  repetida na rplica seguinte.</p>
+	 * Se pinWritesToPrimary for true as modificaes so sempre feitas na primeira rplica da lista (primria), caso contrrio so feitas na melhor rplica disponvel.
+	 * 
+	 * @param urls
+	 * @param distinguishedName
+	 * @param password
+	 * @param searchLimit
+	 *            usar 0 caso no seja pretendido pesquisas paginadas.
+	 * @param pinWritesToPrimary
+	 */
+	public LdapProxy(List<String> urls, String distinguishedName, String password, int searchLimit, boolean pinWritesToPrimary) {
+		if (urls == null || urls.isEmpty()) {
+			throw new IllegalArgumentException("At least one LDAP url is required.");
+		}
+		this.replicas = new ArrayList<LdapReplica>();
+		for (String url : urls) {
+			this.replicas.add(new LdapReplica(url));
+		}
+		this.pinWritesToPrimary = pinWritesToPrimary;
 		this.distinguishedName = distinguishedName;
 		this.password = password;
-		ctx = null;
+		this.maxUsersInMemory = 0;
+		this.connectTimeout = 3000;
+		this.readTimeout = 0;
+		this.healthCheckInterval = 0;
+		this.environment = null;
+		this.healthChecker = null;
 
 		if (searchLimit == 0) {
 			isPagedSearch = false;
@@ -62,6 +104,45 @@ public class LdapProxy {
 		}
 	}
 
+	/**
+	 * Define o tempo mximo (em milissegundos) para estabelecer a ligao a uma rplica. Por defeito so 3000 ms de forma a que uma rplica em baixo seja rapidamente ignorada.</p>
+	 * Utilizar 0 para esperar o tempo definido pelo sistema operativo. Deve ser invocado antes de openLdapConnection().
+	 * 
+	 * @param connectTimeout
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Define o tempo mximo (em milissegundos) de espera por cada resposta do diretrio. Por defeito  0, ou seja, espera indefinidamente.</p>
+	 * Deve ser invocado antes de openLdapConnection().
+	 * 
+	 * @param readTimeout
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Define o intervalo (em milissegundos) entre verificaes peridicas das rplicas (ver checkReplicas()). Por defeito  0, ou seja, as rplicas s so verificadas quando so utilizadas.</p>
+	 * Deve ser invocado antes de openLdapConnection().
+	 * 
+	 * @param healthCheckInterval
+	 */
+	public void setHealthCheckInterval(long healthCheckInterval) {
+		this.healthCheckInterval = healthCheckInterval;
+	}
+
+	/**
+	 * Obtem a lista de rplicas do diretrio com o seu estado, latncia e pedidos em curso.
+	 * 
+	 * @return
+	 */
+	public List<LdapReplica> getReplicas() {
+		return Collections.unmodifiableList(replicas);
+	}
+
 	/**
 	 * Devolve o primeiro utilizador encontrado no diretrio. Internamente este mtodo invoca getUsers e devolve o primeiro elemento da lista e null caso no tenha sido encontrado nenhum utilizador.</p>
 	 * O campo friendlyNameAttribute, quando difernete de null significa que o valor desse campo ser utilizado para definir o friendly name do utilizador. Caso o valor no exista o friendlyName  preenchido com null.</p>
@@ -79,17 +160,22 @@ public class LdapProxy {
 		if (result == null) {
 			return null;
 		} else {
-			return result.get(0); // Devolve o primeiro elemento.
+			User user = result.get(0); // Devolve o primeiro elemento.
+			if (result instanceof SpillingUserList) {
+				((SpillingUserList) result).close();
+			}
+			return user;
 		}
 	}
 
 	/**
 	 * Devolve uma lista de utilizadores com base no filtro. Estes utilizadores tero os UserAttributes deles preenchidos conforme o argumento userAttributes.</p>
-	 * O friendlyName do utilizador  o primeiro nome do container LDAP ( convertido para MINUSCULAS). Por exemplo o utilizador com o DN: OU=Nome,OU=abc,OU=cde,OU=fgh ter como friendlyName o valor "nome".</p>
+	 * O friendlyName do utilizador  o primeiro nome do container LDAP ( convertido para MINUSCULAS). Por exemplo o utilizador com o DN: OU=Nome,OU=abc,OU=cde,OU=fgh ter como friendlyName o valor "nome". Os escapes do DN so resolvidos (CN=Silva\, Ana,OU=abc ter como friendlyName "silva, ana").</p>
 	 * Caso o utilizador no tenha o atributo pedido preenchido no diretorio LDAP este atributo  preenchido a null.</p>
 	 * Caso no tenham sido encontrados utilizadores  devolvido null.</p>
 	 * Se o userAttributes for null  devolvida a lista de utilizadores sem atributos preenchidos.</p>
-	 * O campo friendlyNameAttribute, quando difernete de null significa que o valor desse campo ser utilizado para definir o friendly name do utilizador. Caso o valor no exista o friendlyName  preenchido com null.
+	 * O campo friendlyNameAttribute, quando difernete de null significa que o valor desse campo ser utilizado para definir o friendly name do utilizador. Caso o valor no exista o friendlyName  preenchido com null.</p>
+	 * Caso o setMaxUsersInMemory() seja diferente de 0 os utilizadores alm desse limite so lidos do disco a cada get(), ou seja, cada get() devolve uma cpia: para que alteraes a esses utilizadores fiquem na lista  necessrio voltar a guard-los com set() (ou ListIterator.set()).
 	 * 
 	 * @param baseDN
 	 * @param filter
@@ -98,81 +184,154 @@ public class LdapProxy {
 	 * @throws IOException
 	 * @throws NamingException
 	 */
-	public List<User> getUsers(String baseDN, String filter, List<UserAttribute> userAttributes, UserAttribute friendlyNameAttribute) throws NamingException, IOException {
+	public List<User> getUsers(String baseDN, String filter, final List<UserAttribute> userAttributes, final UserAttribute friendlyNameAttribute) throws NamingException, IOException {
 
-		List<User> result = new ArrayList<User>();
-		List<String> retAttrs = new ArrayList<String>();
-		boolean hasFoundUsers = false;
+		final List<User> result;
+		if (maxUsersInMemory > 0) {
+			result = new SpillingUserList(maxUsersInMemory);
+		} else {
+			result = new ArrayList<User>();
+		}
 
+		try {
+			ldapSearch(baseDN, filter, getReturningAttributes(userAttributes, friendlyNameAttribute), new SearchResultHandler() {
+				public void handle(SearchResult searchResult) throws NamingException, IOException {
+					result.add(toUser(searchResult, userAttributes, friendlyNameAttribute));
+				}
+			});
+		} catch (NamingException e) {
+			closeQuietly(result);
+			throw e;
+		} catch (IOException e) {
+			closeQuietly(result);
+			throw e;
+		} catch (RuntimeException e) {
+			// Ex: IllegalStateException do SpillingUserList quando no  possvel escrever no ficheiro temporrio (disco cheio)
+			closeQuietly(result);
+			throw e;
+		}
+
+		if (!result.isEmpty()) {
+			return result;
+		} else {
+			closeQuietly(result);
+			return null;
+		}
+	}
+
+	/**
+	 * Exporta os utilizadores encontrados com base no filtro  medida que vo sendo recebidos do diretrio, sem os guardar em memria. Devolve o nmero de utilizadores exportados.</p>
+	 * Os utilizadores so obtidos tal como no getUsers() e escritos pelo exporter (ver CsvUserExporter e ColumnarUserExporter). No fim  invocado o flush() do exporter, mas o exporter no  fechado.
+	 * 
+	 * @param baseDN
+	 * @param filter
+	 * @param userAttributes
+	 * @param friendlyNameAttribute
+	 * @param exporter
+	 * @return
+	 * @throws NamingException
+	 * @throws IOException
+	 */
+	public int exportUsers(String baseDN, String filter, final List<UserAttribute> userAttributes, final UserAttribute friendlyNameAttribute, final UserExporter exporter) throws NamingException, IOException {
+		final int[] exportedCount = new int[1];
+		exporter.writeHeader(userAttributes);
+		ldapSearch(baseDN, filter, getReturningAttributes(userAttributes, friendlyNameAttribute), new SearchResultHandler() {
+			public void handle(SearchResult searchResult) throws NamingException, IOException {
+				exporter.write(toUser(searchResult, userAttributes, friendlyNameAttribute));
+				exportedCount[0]++;
+			}
+		});
+		exporter.flush();
+		return exportedCount[0];
+	}
+
+	/**
+	 * Define o nmero mximo de utilizadores que o getUsers() mantm em memria. Os restantes so escritos num ficheiro temporrio e lidos atravs de um ficheiro mapeado em memria (ver SpillingUserList).</p>
+	 * Por defeito  0, ou seja, todos os utilizadores ficam em memria. Quando for diferente de 0 a lista devolvida pelo getUsers() deve ser fechada com SpillingUserList.close() quando j no for necessria.</p>
+	 * Os utilizadores guardados em disco so copiados a cada leitura: alteraes ao objeto devolvido pelo get() s ficam guardadas na lista depois do set() com o utilizador alterado.
+	 * 
+	 * @param maxUsersInMemory
+	 */
+	public void setMaxUsersInMemory(int maxUsersInMemory) {
+		this.maxUsersInMemory = maxUsersInMemory;
+	}
+
+	/**
+	 * Obtem a lista de atributos a pedir ao diretrio LDAP. Devolve um array vazio caso no seja pedido nenhum atributo.
+	 * 
+	 * @param userAttributes
+	 * @param friendlyNameAttribute
+	 * @return
+	 */
+	private static String[] getReturningAttributes(List<UserAttribute> userAttributes, UserAttribute friendlyNameAttribute) {
+		List<String> retAttrs = new ArrayList<String>();
 		if (userAttributes != null) {
 			for (UserAttribute userAttribute : userAttributes) {
 				retAttrs.add(userAttribute.getName());
 			}
-			if (friendlyNameAttribute != null) {
-				retAttrs.add(friendlyNameAttribute.getName());
-			}
+		}
+		if (friendlyNameAttribute != null) {
+			retAttrs.add(friendlyNameAttribute.getName());
+		}
+		return retAttrs.toArray(new String[retAttrs.size()]);
+	}
+
+	/**
+	 * Converte um resultado de pesquisa LDAP num User com os UserAttributes pedidos preenchidos (ver getUsers()).
+	 * 
+	 * @param searchResult
+	 * @param userAttributes
+	 * @param friendlyNameAttribute
+	 * @return
+	 * @throws NamingException
+	 */
+	private static User toUser(SearchResult searchResult, List<UserAttribute> userAttributes, UserAttribute friendlyNameAttribute) throws NamingException {
+		Attributes attributes = searchResult.getAttributes();
+		DistinguishedName dn = DistinguishedName.valueOf(searchResult.getNameInNamespace());
+		String friendlyName = "";
+		if (friendlyNameAttribute == null) {
+			friendlyName = dn.getRdnValue();
 		} else {
-			if (friendlyNameAttribute != null) {
-				retAttrs.add(friendlyNameAttribute.getName());
-			} else {
-				retAttrs = null;
-			}
+			Attribute singleValuedFieldAttr = attributes.get(friendlyNameAttribute.getName());
+			friendlyName = (String) (singleValuedFieldAttr == null ? null : singleValuedFieldAttr.get());
 		}
+		friendlyName = (friendlyName == null ? null : friendlyName.toLowerCase());
 
-		List<SearchResult> results = ldapSearch(baseDN, filter, (retAttrs == null ? new String[] {} : retAttrs.toArray(new String[retAttrs.size()])));
+		if (userAttributes == null) {
+			return new User(dn, friendlyName);
+		}
 
-		try {
-			for (SearchResult searchResult : results) {
-				Attributes attributes = searchResult.getAttributes();
-				String dn = searchResult.getNameInNamespace();
-				String friendlyName = "";
-				if (friendlyNameAttribute == null) {
-					friendlyName = dn.substring(dn.indexOf("=") + 1, dn.indexOf(","));
-				} else {
-					Attribute singleValuedFieldAttr = attributes.get(friendlyNameAttribute.getName());
-					friendlyName = (String) (singleValuedFieldAttr == null ? null : singleValuedFieldAttr.get());
-				}
-				List<UserAttribute> userAttributesResult = new ArrayList<UserAttribute>();
-				hasFoundUsers = true;
-
-				// Prepare all returned attributes
-				if (userAttributes != null) {
-					for (UserAttribute userAttribute : userAttributes) {
-						String fieldName = userAttribute.getName();
-						AttributeType fieldType = userAttribute.getType();
-
-						if (fieldType == AttributeType.SINGLE_VALUED) {
-							Attribute singleValuedFieldAttr = attributes.get(fieldName);
-							String singleValuedAttr = (String) (singleValuedFieldAttr == null ? null : singleValuedFieldAttr.get());
-							userAttributesResult.add(new UserAttribute(fieldName, singleValuedAttr));
-						} else if (fieldType == AttributeType.MULTI_VALUED) {
-							Attribute multiValuedFieldAttr = attributes.get(fieldName);
-							List<String> multiValuedAttr = new ArrayList<String>();
-							if (multiValuedFieldAttr != null) {
-								NamingEnumeration<?> multiValuedFieldAttrEnum = multiValuedFieldAttr.getAll();
-								while (multiValuedFieldAttrEnum.hasMore()) {
-									multiValuedAttr.add(multiValuedFieldAttrEnum.next().toString());
-								}
-							} else {
-								multiValuedAttr = null;
-							}
-							userAttributesResult.add(new UserAttribute(fieldName, multiValuedAttr));
-						}
+		// Prepare all returned attributes
+		List<UserAttribute> userAttributesResult = new ArrayList<UserAttribute>();
+		for (UserAttribute userAttribute : userAttributes) {
+			String fieldName = userAttribute.getName();
+			AttributeType fieldType = userAttribute.getType();
+
+			if (fieldType == AttributeType.SINGLE_VALUED) {
+				Attribute singleValuedFieldAttr = attributes.get(fieldName);
+				String singleValuedAttr = (String) (singleValuedFieldAttr == null ? null : singleValuedFieldAttr.get());
+				userAttributesResult.add(new UserAttribute(fieldName, singleValuedAttr));
+			} else if (fieldType == AttributeType.MULTI_VALUED) {
+				Attribute multiValuedFieldAttr = attributes.get(fieldName);
+				List<String> multiValuedAttr = new ArrayList<String>();
+				if (multiValuedFieldAttr != null) {
+					NamingEnumeration<?> multiValuedFieldAttrEnum = multiValuedFieldAttr.getAll();
+					while (multiValuedFieldAttrEnum.hasMore()) {
+						multiValuedAttr.add(multiValuedFieldAttrEnum.next().toString());
 					}
-					// Add attributes to user
-					result.add(new User(dn, friendlyName.toLowerCase(), userAttributesResult));
 				} else {
-					result.add(new User(dn, friendlyName.toLowerCase()));
+					multiValuedAttr = null;
 				}
+				userAttributesResult.add(new UserAttribute(fieldName, multiValuedAttr));
 			}
-		} catch (NamingException e) {
-			throw e;
 		}
+		// Add attributes to user
+		return new User(dn, friendlyName, userAttributesResult);
+	}
 
-		if (hasFoundUsers) {
-			return result;
-		} else {
-			return null;
+	private static void closeQuietly(List<User> users) {
+		if (users instanceof SpillingUserList) {
+			((SpillingUserList) users).close();
 		}
 	}
 
@@ -252,34 +411,85 @@ public class LdapProxy {
 	}
 
 	/**
-	 * Mtodo interno para pesquisas LDAP.
+	 * Mtodo interno para pesquisas LDAP. Cada resultado  entregue ao handler  medida que  recebido, sem ser guardado em memria.</p>
+	 * A pesquisa  feita na melhor rplica disponvel e repetida na rplica seguinte caso a rplica falhe ou esteja ocupada antes de ter sido entregue algum resultado (ver isConnectionFailure()).
 	 * 
 	 * @param baseDN
 	 * @param filter
 	 * @param retAttrs
-	 * @return
+	 * @param handler
 	 * @throws NamingException
 	 * @throws IOException
 	 */
-	private List<SearchResult> ldapSearch(String baseDN, String filter, String[] retAttrs) throws NamingException, IOException {
+	private void ldapSearch(String baseDN, String filter, String[] retAttrs, SearchResultHandler handler) throws NamingException, IOException {
+		List<LdapReplica> triedReplicas = new ArrayList<LdapReplica>();
+		NamingException lastError = null;
+		LdapReplica replica;
+
+		while ((replica = selectReplica(triedReplicas)) != null) {
+			triedReplicas.add(replica);
+			replica.begin();
+			int[] handledCount = new int[1];
+			try {
+				ldapSearch(replica, baseDN, filter, retAttrs, handler, handledCount);
+				return;
+			} catch (NamingException e) {
+				if (!isConnectionFailure(e)) {
+					throw e;
+				}
+				if (isReplicaFailure(e)) {
+					replica.markUnhealthy();
+				}
+				if (handledCount[0] > 0) {
+					throw e; // J foram entregues resultados, repetir a pesquisa iria duplic-los
+				}
+				lastError = e;
+			} finally {
+				replica.end();
+			}
+		}
+		throw noReplicaAvailable(lastError);
+	}
+
+	/**
+	 * Mtodo interno para pesquisas LDAP numa rplica. O handledCount[0]  incrementado por cada resultado entregue ao handler.
+	 * 
+	 * @param replica
+	 * @param baseDN
+	 * @param filter
+	 * @param retAttrs
+	 * @param handler
+	 * @param handledCount
+	 * @throws NamingException
+	 * @throws IOException
+	 */
+	private void ldapSearch(LdapReplica replica, String baseDN, String filter, String[] retAttrs, SearchResultHandler handler, int[] handledCount) throws NamingException, IOException {
 
 		SearchControls searchControls = new SearchControls();
 		searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
 		searchControls.setReturningAttributes(retAttrs);
 
-		// Paged ldap search
-		if (isPagedSearch) {
+		LdapContext ctx = replica.getContext();
+		if (ctx == null) {
+			throw new ServiceUnavailableException("LDAP replica " + replica.getUrl() + " is not connected.");
+		}
+		// Contexto prprio para a pesquisa de forma a que os request controls no sejam partilhados
+		ctx = ctx.newInstance(null);
 
-			List<SearchResult> resultList = new ArrayList<SearchResult>();
-			byte[] cookie = null;
+		try {
+			// Paged ldap search
+			if (isPagedSearch) {
 
-			try {
+				byte[] cookie = null;
 
 				ctx.setRequestControls(new Control[] { new PagedResultsControl(searchLimit, Control.NONCRITICAL) });
 				do {
+					long requestStart = System.nanoTime();
 					NamingEnumeration<SearchResult> pagedResults = ctx.search(baseDN, filter, searchControls);
-					resultList.addAll(Collections.list(pagedResults));
+					replica.recordLatency(System.nanoTime() - requestStart);
+					handleResults(pagedResults, handler, handledCount);
 
+					cookie = null;
 					Control[] pagedControls = ctx.getResponseControls();
 					if (pagedControls != null) {
 						for (int i = 0; i < pagedControls.length; i++) {
@@ -290,61 +500,272 @@ public class LdapProxy {
 					}
 					ctx.setRequestControls(new Control[] { new PagedResultsControl(searchLimit, cookie, Control.CRITICAL) });
 				} while (cookie != null);
-
-				return resultList;
-			} catch (NamingException e) {
-				throw e;
-			} catch (IOException e) {
-				throw e;
-			}
-		} else {
-			try {
+			} else {
+				long requestStart = System.nanoTime();
 				NamingEnumeration<SearchResult> results = ctx.search(baseDN, filter, searchControls);
-				List<SearchResult> resultList = Collections.list(results);
-				return resultList;
-			} catch (NamingException e) {
-				throw e;
+				replica.recordLatency(System.nanoTime() - requestStart);
+				handleResults(results, handler, handledCount);
 			}
+		} finally {
+			ctx.close();
+		}
+	}
+
+	private static void handleResults(NamingEnumeration<SearchResult> results, SearchResultHandler handler, int[] handledCount) throws NamingException, IOException {
+		try {
+			while (results.hasMore()) {
+				handler.handle(results.next());
+				handledCount[0]++;
+			}
+		} finally {
+			results.close();
 		}
 	}
 
 	/**
-	 * Mtodo interno para modificaes LDAP.
+	 * Mtodo interno para modificaes LDAP. Caso as escritas estejam presas  primria a modificao  sempre feita na primeira rplica.</p>
+	 * As modificaes no so repetidas noutra rplica em caso de falha pois no  possvel saber se a modificao chegou a ser aplicada.
 	 * 
 	 * @param dn
 	 * @param modItems
 	 * @throws NamingException
 	 */
 	private void ldapModify(String dn, ModificationItem[] modItems) throws NamingException {
+		LdapReplica replica;
+		if (pinWritesToPrimary) {
+			replica = replicas.get(0);
+			// No existe alternativa  primria, pelo que  religada j mesmo que o intervalo de espera no tenha passado
+			if (!replica.isHealthy() && !(replica.tryStartReconnect() && replica.reconnect(environment))) {
+				replica = null;
+			}
+		} else {
+			replica = selectReplica(Collections.<LdapReplica> emptyList());
+		}
+		if (replica == null) {
+			throw noReplicaAvailable(null);
+		}
+
+		replica.begin();
 		try {
+			LdapContext ctx = replica.getContext();
+			if (ctx == null) {
+				throw new ServiceUnavailableException("LDAP replica " + replica.getUrl() + " is not connected.");
+			}
+			long requestStart = System.nanoTime();
 			ctx.modifyAttributes(dn, modItems);
+			replica.recordLatency(System.nanoTime() - requestStart);
 		} catch (NamingException e) {
+			if (isReplicaFailure(e)) {
+				replica.markUnhealthy();
+			}
 			throw e;
+		} finally {
+			replica.end();
+		}
+	}
+
+	/**
+	 * Escolhe a rplica disponvel com melhor pontuao (latncia mdia vezes pedidos em curso) ignorando as rplicas j tentadas. Devolve null se no existir nenhuma rplica disponvel.</p>
+	 * As rplicas indisponveis cujo intervalo de espera j tenha passado so religadas em background, sem atrasar o pedido. S quando no existe nenhuma rplica disponvel  que o pedido tenta religar uma rplica, e apenas se nenhuma outra thread a estiver a religar.</p>
+	 * Nesse caso, se nenhuma rplica tiver o intervalo de espera cumprido,  religada a que falhou h mais tempo em vez de o pedido falhar (ex: um diretrio com uma nica rplica que teve uma resposta lenta mas j recuperou).
+	 * 
+	 * @param excludedReplicas
+	 * @return
+	 */
+	private LdapReplica selectReplica(List<LdapReplica> excludedReplicas) {
+		Hashtable<String, String> environment = this.environment;
+		if (environment == null) {
+			throw new IllegalStateException("LDAP connection is not open. Invoke openLdapConnection() first.");
+		}
+		LdapReplica best = null;
+		LdapReplica oldestFailure = null;
+		List<LdapReplica> dueReplicas = null;
+		for (LdapReplica replica : replicas) {
+			if (excludedReplicas.contains(replica)) {
+				continue;
+			}
+			if (!replica.isHealthy()) {
+				if (oldestFailure == null || replica.getRetryAt() < oldestFailure.getRetryAt()) {
+					oldestFailure = replica;
+				}
+				if (replica.isRetryDue()) {
+					if (dueReplicas == null) {
+						dueReplicas = new ArrayList<LdapReplica>();
+					}
+					dueReplicas.add(replica);
+				}
+				continue;
+			}
+			if (best == null || replica.getScore() < best.getScore()) {
+				best = replica;
+			}
+		}
+		if (best == null && dueReplicas == null && oldestFailure != null) {
+			dueReplicas = Collections.singletonList(oldestFailure);
+		}
+		if (dueReplicas != null) {
+			for (LdapReplica replica : dueReplicas) {
+				if (best == null) {
+					if (replica.tryStartReconnect() && replica.reconnect(environment)) {
+						best = replica;
+					}
+				} else {
+					reconnectInBackground(replica, environment);
+				}
+			}
+		}
+		return best;
+	}
+
+	private void reconnectInBackground(final LdapReplica replica, final Hashtable<String, String> environment) {
+		ScheduledExecutorService executor = healthChecker;
+		if (executor == null || !replica.tryStartReconnect()) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					replica.reconnect(environment);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			replica.cancelReconnect(); // Ligao a ser fechada
 		}
 	}
 
 	/**
-	 * Inicia conneco LDAP. Utilizar no inicio.
+	 * Devolve true se a excepo indica que a rplica no pode responder ao pedido (e no um erro do pedido em si), sendo o pedido repetido noutra rplica.</p>
+	 * Inclui as falhas de ligao (ver isReplicaFailure()) e a ServiceUnavailableException, que indica que a rplica est ocupada (busy) mas a ligao continua vlida.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private static boolean isConnectionFailure(NamingException e) {
+		return isReplicaFailure(e) || e instanceof ServiceUnavailableException;
+	}
+
+	/**
+	 * Devolve true se a excepo indica que a ligao  rplica falhou, devendo a rplica ser marcada como indisponvel.</p>
+	 * Para alm da CommunicationException, o JNDI reporta a ligao fechada pelo servidor e o fim do tempo de leitura (com.sun.jndi.ldap.read.timeout) como uma NamingException genrica, que s se distingue pela mensagem.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private static boolean isReplicaFailure(NamingException e) {
+		if (e instanceof CommunicationException || e.getRootCause() instanceof IOException) {
+			return true;
+		}
+		String explanation = e.getExplanation();
+		return e.getClass() == NamingException.class && explanation != null && (explanation.startsWith("LDAP connection has been closed") || explanation.startsWith("LDAP response read timed out"));
+	}
+
+	private NamingException noReplicaAvailable(NamingException cause) {
+		ServiceUnavailableException e = new ServiceUnavailableException("No LDAP replica available from " + replicas + ".");
+		if (cause != null) {
+			e.setRootCause(cause);
+		}
+		return e;
+	}
+
+	/**
+	 * Verifica o estado de todas as rplicas. As rplicas disponveis so testadas lendo o root DSE (actualizando a sua latncia mdia) e as indisponveis so religadas.</p>
+	 *  invocado periodicamente caso tenha sido definido um healthCheckInterval mas pode ser invocado diretamente.
+	 */
+	public void checkReplicas() {
+		Hashtable<String, String> environment = this.environment;
+		if (environment == null) {
+			return;
+		}
+		for (LdapReplica replica : replicas) {
+			try {
+				if (replica.isHealthy()) {
+					replica.ping();
+				} else if (replica.tryStartReconnect()) {
+					replica.reconnect(environment);
+				}
+			} catch (NamingException e) {
+				// Uma rplica ocupada (busy) continua disponvel, tal como nos pedidos
+				if (isReplicaFailure(e)) {
+					replica.markUnhealthy();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Inicia conneco LDAP a todas as rplicas. Utilizar no inicio.</p>
+	 * S  lanada excepo caso no seja possvel ligar a nenhuma das rplicas. As rplicas que falharem sero religadas mais tarde.
 	 * 
 	 * @throws NamingException
 	 */
 	public void openLdapConnection() throws NamingException {
 		Hashtable<String, String> setup = new Hashtable<String, String>();
 		setup.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-		setup.put(Context.PROVIDER_URL, "ldap://" + url);
 		setup.put(Context.SECURITY_AUTHENTICATION, "simple");
 		setup.put(Context.SECURITY_PRINCIPAL, distinguishedName);
 		setup.put(Context.SECURITY_CREDENTIALS, password);
 		setup.put("com.sun.jndi.ldap.connect.pool", "true");
-		ctx = new InitialLdapContext(setup, null);
+		if (connectTimeout > 0) {
+			setup.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(connectTimeout));
+		}
+		if (readTimeout > 0) {
+			setup.put("com.sun.jndi.ldap.read.timeout", String.valueOf(readTimeout));
+		}
+		environment = setup;
+
+		NamingException lastError = null;
+		boolean isConnected = false;
+		for (LdapReplica replica : replicas) {
+			try {
+				replica.open(environment);
+				isConnected = true;
+			} catch (NamingException e) {
+				replica.markUnhealthy();
+				lastError = e;
+			}
+		}
+		if (!isConnected) {
+			environment = null;
+			throw lastError;
+		}
+
+		// Thread utilizada para religar as rplicas em background e para o health check
+		healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "LdapProxy health check");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (healthCheckInterval > 0) {
+			healthChecker.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					checkReplicas();
+				}
+			}, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+		}
 	}
 
 	/**
-	 * Fecha conneco LDAP. Utilizar no final.
+	 * Fecha conneco LDAP a todas as rplicas. Utilizar no final.
 	 * 
 	 * @throws NamingException
 	 */
 	public void closeLdapConnection() throws NamingException {
-		ctx.close();
+		if (healthChecker != null) {
+			healthChecker.shutdownNow();
+			healthChecker = null;
+		}
+		for (LdapReplica replica : replicas) {
+			replica.close();
+		}
+		environment = null;
+	}
+
+	/**
+	 * Recebe os resultados de uma pesquisa LDAP  medida que vo chegando.
+	 */
+	private interface SearchResultHandler {
+		void handle(SearchResult searchResult) throws NamingException, IOException;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,297 @@
+package utils.ldap;
+
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Representa uma rplica (servidor) de um diretrio LDAP utilizada pelo LdapProxy.</p>
+ * Mantm a ligao  rplica, a latncia observada (mdia mvel exponencial do tempo de ida e volta de cada pedido) e o nmero de pedidos em curso de forma a que o LdapProxy possa escolher a rplica mais rpida.
+ *
+ * @author E000161
+ *
+ */
+public class LdapReplica {
+
+	/**
+	 * Peso dado a cada nova medio na mdia mvel da latncia.
+	 */
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	/**
+	 * Tempo de espera (em milissegundos) antes de religar a rplica depois da primeira falha. Duplica a cada religao falhada at MAX_RETRY_DELAY.
+	 */
+	private static final long MIN_RETRY_DELAY = 250;
+
+	/**
+	 * Tempo mximo de espera (em milissegundos) entre tentativas de religar a rplica.
+	 */
+	private static final long MAX_RETRY_DELAY = 30000;
+
+	private final String url;
+	private final AtomicInteger outstandingRequests;
+	private volatile LdapContext ctx;
+	private volatile boolean healthy;
+	private final AtomicLong latencyNanos;
+	private volatile long retryAt;
+	private volatile long retryDelay;
+	private final AtomicBoolean reconnecting;
+	private int generation;
+
+	/**
+	 * Cria uma rplica a partir do seu url (host:porto). A ligao s  estabelecida ao invocar open().
+	 *
+	 * @param url
+	 */
+	public LdapReplica(String url) {
+		this.url = url;
+		this.outstandingRequests = new AtomicInteger();
+		this.ctx = null;
+		this.healthy = false;
+		this.latencyNanos = new AtomicLong();
+		this.retryAt = 0;
+		this.retryDelay = 0;
+		this.reconnecting = new AtomicBoolean();
+		this.generation = 0;
+	}
+
+	/**
+	 * Obtem o url (host:porto) da rplica.
+	 *
+	 * @return
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Devolve true se a rplica tem uma ligao aberta e a ltima operao no falhou por problemas de comunicao.
+	 *
+	 * @return
+	 */
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * Obtem a latncia mdia observada na rplica em milissegundos.
+	 *
+	 * @return
+	 */
+	public double getLatencyMillis() {
+		return latencyNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * Obtem o nmero de pedidos em curso na rplica.
+	 *
+	 * @return
+	 */
+	public int getOutstandingRequests() {
+		return outstandingRequests.get();
+	}
+
+	/**
+	 * Pontuao utilizada para escolher a rplica. Quanto menor melhor: latncia mdia multiplicada pelo nmero de pedidos em curso (mais o pedido novo).
+	 *
+	 * @return
+	 */
+	double getScore() {
+		return (double) Math.max(latencyNanos.get(), 1) * (outstandingRequests.get() + 1);
+	}
+
+	/**
+	 * Abre a ligao  rplica utilizando o ambiente JNDI recebido (sem o Context.PROVIDER_URL).</p>
+	 * A rplica s fica disponvel depois de responder  leitura do root DSE, uma vez que o bind pode reutilizar uma ligao do pool a um servidor que deixou de responder. O tempo desta leitura  a primeira medio de latncia.</p>
+	 * A ligao  estabelecida sem bloquear a rplica, pelo que os pedidos em curso e o markUnhealthy() no esperam pelo connectTimeout. Se a rplica for fechada entretanto a nova ligao  descartada.
+	 *
+	 * @param environment
+	 * @throws NamingException
+	 */
+	void open(Hashtable<String, String> environment) throws NamingException {
+		int openGeneration;
+		synchronized (this) {
+			openGeneration = generation;
+		}
+		Hashtable<String, String> setup = new Hashtable<String, String>(environment);
+		setup.put(Context.PROVIDER_URL, "ldap://" + url);
+		LdapContext newCtx = new InitialLdapContext(setup, null);
+		long start = System.nanoTime();
+		try {
+			newCtx.getAttributes("", new String[] { "objectClass" });
+		} catch (NamingException e) {
+			closeQuietly(newCtx);
+			throw e;
+		}
+		long roundTripNanos = System.nanoTime() - start;
+		synchronized (this) {
+			if (openGeneration != generation) {
+				closeQuietly(newCtx);
+				throw new ServiceUnavailableException("LDAP replica " + url + " was closed while connecting.");
+			}
+			latencyNanos.set(roundTripNanos);
+			closeQuietly(ctx);
+			ctx = newCtx;
+			healthy = true;
+			retryDelay = 0;
+		}
+	}
+
+	/**
+	 * Devolve true se a rplica est indisponvel e j passou o intervalo de espera definido em markUnhealthy(), podendo ser religada com o reconnect().
+	 *
+	 * @return
+	 */
+	boolean isRetryDue() {
+		return !healthy && System.currentTimeMillis() >= retryAt;
+	}
+
+	/**
+	 * Obtem o instante (em milissegundos) a partir do qual a rplica indisponvel pode ser religada.
+	 *
+	 * @return
+	 */
+	long getRetryAt() {
+		return retryAt;
+	}
+
+	/**
+	 * Reserva a religao da rplica. Devolve false se outra thread j a estiver a religar, caso em que o reconnect() no deve ser invocado.
+	 *
+	 * @return
+	 */
+	boolean tryStartReconnect() {
+		return reconnecting.compareAndSet(false, true);
+	}
+
+	/**
+	 * Liberta a reserva feita com o tryStartReconnect() sem religar a rplica.
+	 */
+	void cancelReconnect() {
+		reconnecting.set(false);
+	}
+
+	/**
+	 * Volta a abrir a ligao  rplica depois de reservada com o tryStartReconnect(). Se falhar a rplica fica indisponvel durante o dobro do intervalo de espera anterior (ver markUnhealthy()).</p>
+	 * Devolve true se a rplica ficou disponvel.
+	 *
+	 * @param environment
+	 * @return
+	 */
+	boolean reconnect(Hashtable<String, String> environment) {
+		try {
+			open(environment);
+			return true;
+		} catch (NamingException e) {
+			markUnhealthy();
+			return false;
+		} finally {
+			reconnecting.set(false);
+		}
+	}
+
+	/**
+	 * Marca a rplica como indisponvel fechando a sua ligao. S voltar a ser religada depois de um intervalo de espera que comea em MIN_RETRY_DELAY e duplica a cada falha seguinte at MAX_RETRY_DELAY, voltando ao inicio quando a rplica fica disponvel.</p>
+	 * Desta forma uma falha pontual (ex: uma resposta lenta) no deixa a rplica fora de servio muito tempo, mas uma rplica em baixo no  religada a cada pedido.
+	 */
+	synchronized void markUnhealthy() {
+		this.healthy = false;
+		this.retryDelay = (retryDelay == 0 ? MIN_RETRY_DELAY : Math.min(retryDelay * 2, MAX_RETRY_DELAY));
+		this.retryAt = System.currentTimeMillis() + retryDelay;
+		closeQuietly(ctx);
+		ctx = null;
+	}
+
+	/**
+	 * Obtem a ligao  rplica. Devolve null se a rplica no estiver disponvel.
+	 *
+	 * @return
+	 */
+	LdapContext getContext() {
+		return ctx;
+	}
+
+	/**
+	 * Regista o inicio de um pedido na rplica (ver getOutstandingRequests()).
+	 */
+	void begin() {
+		outstandingRequests.incrementAndGet();
+	}
+
+	/**
+	 * Regista o fim de um pedido na rplica.
+	 */
+	void end() {
+		outstandingRequests.decrementAndGet();
+	}
+
+	/**
+	 * Actualiza a latncia mdia com o tempo de ida e volta de um pedido (ex: at  primeira resposta de cada pgina de uma pesquisa).</p>
+	 * No deve incluir o tempo de processamento dos resultados pelo cliente, para que uma pesquisa longa no penalize a rplica.
+	 *
+	 * @param roundTripNanos
+	 */
+	void recordLatency(long roundTripNanos) {
+		long current;
+		long updated;
+		do {
+			current = latencyNanos.get();
+			updated = current + (long) ((roundTripNanos - current) * LATENCY_WEIGHT);
+		} while (!latencyNanos.compareAndSet(current, updated));
+	}
+
+	/**
+	 * Verifica se a rplica responde lendo o root DSE. O tempo de resposta  contabilizado na latncia mdia.
+	 *
+	 * @throws NamingException
+	 */
+	void ping() throws NamingException {
+		LdapContext current = ctx;
+		if (current == null) {
+			throw new ServiceUnavailableException("LDAP replica " + url + " is not connected.");
+		}
+		begin();
+		try {
+			long start = System.nanoTime();
+			current.getAttributes("", new String[] { "objectClass" });
+			recordLatency(System.nanoTime() - start);
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Fecha a ligao  rplica.
+	 */
+	synchronized void close() {
+		generation++;
+		healthy = false;
+		closeQuietly(ctx);
+		ctx = null;
+	}
+
+	private static void closeQuietly(LdapContext ctx) {
+		if (ctx != null) {
+			try {
+				ctx.close();
+			} catch (NamingException e) {
+				// Ligao j se encontrava fechada
+			}
+		}
+	}
+
+	/**
+	 * Imprime o url da rplica assim como o seu estado.
+	 */
+	@Override
+	public String toString() {
+		return "LdapReplica [url=" + url + ", healthy=" + healthy + ", latencyMillis=" + getLatencyMillis() + ", outstandingRequests=" + outstandingRequests + "]";
+	}
+}
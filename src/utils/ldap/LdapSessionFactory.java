@@ -0,0 +1,247 @@
+package utils.ldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.naming.NamingException;
+
+/**
+ * Fbrica de ligaes (LdapProxy) aos vrios diretrios LDAP configurados, identificados por um nome (ex: CORPORATE, PROVISIONING, AD).</p>
+ * Cada diretrio s  ligado (bind) na primeira vez que  pedido atravs do getProxy() e a ligao  reutilizada em todos os pedidos seguintes at ser invocado o close().</p>
+ * O warmUp() permite ligar todos os diretrios em paralelo no inicio de um processo.
+ *
+ * @author E000161
+ *
+ */
+public class LdapSessionFactory {
+
+	private final Map<String, Directory> directories;
+	private int connectTimeout;
+	private int readTimeout;
+
+	/**
+	 * Cria uma fbrica sem diretrios. Os diretrios so adicionados com o register().
+	 */
+	public LdapSessionFactory() {
+		this.directories = new LinkedHashMap<String, Directory>();
+		this.connectTimeout = 3000;
+		this.readTimeout = 0;
+	}
+
+	/**
+	 * Cria uma fbrica com os diretrios configurados nas properties (ver config.properties). Para cada nome de diretrio so lidas as chaves &lt;nome&gt;_URL, &lt;nome&gt;_USER, &lt;nome&gt;_PASSWORD, &lt;nome&gt;_SEARCH_LIMIT (opcional) e &lt;nome&gt;_PIN_WRITES_TO_PRIMARY (opcional, true ou false).</p>
+	 * Os timeouts so lidos das chaves LDAP_CONNECT_TIMEOUT e LDAP_READ_TIMEOUT (opcionais, em milissegundos). A password  utilizada tal como est nas properties.
+	 *
+	 * @param properties
+	 * @param directoryNames
+	 * @return
+	 */
+	public static LdapSessionFactory fromProperties(Properties properties, String... directoryNames) {
+		LdapSessionFactory factory = new LdapSessionFactory();
+		String connectTimeout = properties.getProperty("LDAP_CONNECT_TIMEOUT");
+		if (connectTimeout != null) {
+			factory.setConnectTimeout(Integer.parseInt(connectTimeout.trim()));
+		}
+		String readTimeout = properties.getProperty("LDAP_READ_TIMEOUT");
+		if (readTimeout != null) {
+			factory.setReadTimeout(Integer.parseInt(readTimeout.trim()));
+		}
+		for (String name : directoryNames) {
+			String url = properties.getProperty(name + "_URL");
+			if (url == null) {
+				throw new IllegalArgumentException("Missing property " + name + "_URL.");
+			}
+			String searchLimit = properties.getProperty(name + "_SEARCH_LIMIT", "0");
+			String pinWritesToPrimary = properties.getProperty(name + "_PIN_WRITES_TO_PRIMARY", "false");
+			factory.register(name, url.trim(), properties.getProperty(name + "_USER"), properties.getProperty(name + "_PASSWORD"), Integer.parseInt(searchLimit.trim()), Boolean.parseBoolean(pinWritesToPrimary.trim()));
+		}
+		return factory;
+	}
+
+	/**
+	 * Adiciona um diretrio  fbrica. Os argumentos so os mesmos do construtor do LdapProxy. A ligao s  feita no primeiro getProxy() ou no warmUp().
+	 *
+	 * @param name
+	 * @param url
+	 * @param distinguishedName
+	 * @param password
+	 * @param searchLimit
+	 */
+	public void register(String name, String url, String distinguishedName, String password, int searchLimit) {
+		register(name, url, distinguishedName, password, searchLimit, false);
+	}
+
+	/**
+	 * Adiciona um diretrio  fbrica. O url pode ter vrias rplicas separadas por vrgulas e, se pinWritesToPrimary for true, as modificaes so sempre feitas na primeira (ver construtor do LdapProxy).
+	 *
+	 * @param name
+	 * @param url
+	 * @param distinguishedName
+	 * @param password
+	 * @param searchLimit
+	 * @param pinWritesToPrimary
+	 */
+	public synchronized void register(String name, String url, String distinguishedName, String password, int searchLimit, boolean pinWritesToPrimary) {
+		if (directories.containsKey(name)) {
+			throw new IllegalArgumentException("Directory " + name + " is already registered.");
+		}
+		directories.put(name, new Directory(url, distinguishedName, password, searchLimit, pinWritesToPrimary));
+	}
+
+	/**
+	 * Define o tempo mximo (em milissegundos) para estabelecer a ligao a cada diretrio. Por defeito so 3000 ms. Aplica-se aos diretrios ainda no ligados.
+	 *
+	 * @param connectTimeout
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Define o tempo mximo (em milissegundos) de espera por cada resposta dos diretrios. Por defeito  0 (sem limite). Aplica-se aos diretrios ainda no ligados.
+	 *
+	 * @param readTimeout
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Obtem a ligao ao diretrio, fazendo o bind caso seja a primeira vez que  pedido. Os pedidos seguintes devolvem a mesma ligao.</p>
+	 * Se o bind falhar  lanada a excepo e o bind  tentado de novo no prximo pedido.
+	 *
+	 * @param name
+	 * @return
+	 * @throws NamingException
+	 */
+	public LdapProxy getProxy(String name) throws NamingException {
+		return getDirectory(name).getProxy();
+	}
+
+	/**
+	 * Liga em paralelo todos os diretrios registados que ainda no estejam ligados, esperando que terminem.</p>
+	 * Devolve os erros dos diretrios que no foi possvel ligar (vazio se todos ficaram ligados). Estes diretrios voltam a ser tentados no getProxy().
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Map<String, NamingException> warmUp() throws InterruptedException {
+		Map<String, Directory> toWarmUp;
+		synchronized (this) {
+			toWarmUp = new LinkedHashMap<String, Directory>(directories);
+		}
+		Map<String, NamingException> errors = new LinkedHashMap<String, NamingException>();
+		if (toWarmUp.isEmpty()) {
+			return errors;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(toWarmUp.size());
+		try {
+			Map<String, Future<LdapProxy>> binds = new LinkedHashMap<String, Future<LdapProxy>>();
+			for (Map.Entry<String, Directory> entry : toWarmUp.entrySet()) {
+				binds.put(entry.getKey(), executor.submit(entry.getValue()));
+			}
+			for (Map.Entry<String, Future<LdapProxy>> bind : binds.entrySet()) {
+				try {
+					bind.getValue().get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof NamingException) {
+						errors.put(bind.getKey(), (NamingException) e.getCause());
+					} else {
+						throw new IllegalStateException("Unexpected error binding to " + bind.getKey() + ".", e.getCause());
+					}
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return errors;
+	}
+
+	/**
+	 * Fecha as ligaes a todos os diretrios. Um getProxy() posterior volta a fazer o bind.
+	 *
+	 * @throws NamingException
+	 */
+	public void close() throws NamingException {
+		List<Directory> toClose;
+		synchronized (this) {
+			toClose = new ArrayList<Directory>(directories.values());
+		}
+		NamingException firstError = null;
+		for (Directory directory : toClose) {
+			try {
+				directory.close();
+			} catch (NamingException e) {
+				if (firstError == null) {
+					firstError = e;
+				}
+			}
+		}
+		if (firstError != null) {
+			throw firstError;
+		}
+	}
+
+	private synchronized Directory getDirectory(String name) {
+		Directory directory = directories.get(name);
+		if (directory == null) {
+			throw new IllegalArgumentException("Unknown directory " + name + ".");
+		}
+		return directory;
+	}
+
+	/**
+	 * Configurao e ligao (quando j feita) de um diretrio.
+	 */
+	private final class Directory implements Callable<LdapProxy> {
+
+		private final String url;
+		private final String distinguishedName;
+		private final String password;
+		private final int searchLimit;
+		private final boolean pinWritesToPrimary;
+		private LdapProxy proxy;
+
+		Directory(String url, String distinguishedName, String password, int searchLimit, boolean pinWritesToPrimary) {
+			this.url = url;
+			this.distinguishedName = distinguishedName;
+			this.password = password;
+			this.searchLimit = searchLimit;
+			this.pinWritesToPrimary = pinWritesToPrimary;
+			this.proxy = null;
+		}
+
+		synchronized LdapProxy getProxy() throws NamingException {
+			if (proxy == null) {
+				LdapProxy newProxy = new LdapProxy(Arrays.asList(url.trim().split("\\s*,\\s*")), distinguishedName, password, searchLimit, pinWritesToPrimary);
+				newProxy.setConnectTimeout(connectTimeout);
+				newProxy.setReadTimeout(readTimeout);
+				newProxy.openLdapConnection();
+				proxy = newProxy;
+			}
+			return proxy;
+		}
+
+		synchronized void close() throws NamingException {
+			if (proxy != null) {
+				LdapProxy toClose = proxy;
+				proxy = null;
+				toClose.closeLdapConnection();
+			}
+		}
+
+		public LdapProxy call() throws NamingException {
+			return getProxy();
+		}
+	}
+}
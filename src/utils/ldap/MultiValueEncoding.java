@@ -0,0 +1,10 @@
+package utils.ldap;
+
+/**
+ * Forma de escrever os atributos multi-valued numa nica coluna ao exportar utilizadores para CSV/TSV.
+ * @author E000161
+ *
+ */
+public enum MultiValueEncoding {
+	JOINED_VALUES , FIRST_VALUE
+}
@@ -0,0 +1,425 @@
+package utils.ldap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lista de utilizadores que mantm em memria apenas os primeiros maxUsersInMemory utilizadores. Os restantes so escritos num ficheiro temporrio num formato binrio compacto e lidos atravs de um ficheiro mapeado em memria.</p>
+ * Permite ao getUsers() devolver resultados com milhes de utilizadores sem esgotar a memria da JVM.</p>
+ * Suporta adicionar utilizadores no fim da lista (add) e substituir utilizadores (set), mas no remover.</p>
+ * Os utilizadores guardados em disco so lidos de novo a cada get(), ou seja, cada get() devolve uma cpia: as alteraes feitas ao objeto devolvido s ficam guardadas na lista depois de invocado o set() (ou o ListIterator.set()) com o utilizador alterado. Cada set() escreve um novo registo no fim do ficheiro.</p>
+ * Tal como a ArrayList esta lista no  thread-safe. Invocar close() quando a lista j no for necessria para apagar o ficheiro temporrio.
+ *
+ * @author E000161
+ *
+ */
+public class SpillingUserList extends AbstractList<User> implements Closeable {
+
+	/**
+	 * Tamanho de cada segmento do ficheiro mapeado em memria.
+	 */
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Tamanho do buffer de escrita no ficheiro.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private static final byte NULL_MARKER = 0;
+	private static final byte SINGLE_VALUED = 1;
+	private static final byte MULTI_VALUED = 2;
+
+	private final int maxUsersInMemory;
+	private final List<User> heapUsers;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private ByteBuffer writeBuffer;
+	private ByteBuffer recordBuffer;
+	private long flushedLength;
+	private long[] offsets;
+	private int[] lengths;
+	private int spilledCount;
+	private MappedByteBuffer[] segments;
+	private byte[] stringBuffer;
+	private boolean closed;
+
+	// Os nomes dos atributos so guardados uma nica vez e referenciados pelo seu indice
+	private final List<String> attributeNames;
+	private final Map<String, Integer> attributeNameIndexes;
+
+	/**
+	 * Cria uma lista que mantm em memria no mximo maxUsersInMemory utilizadores. O ficheiro temporrio s  criado quando este limite for ultrapassado.
+	 *
+	 * @param maxUsersInMemory
+	 */
+	public SpillingUserList(int maxUsersInMemory) {
+		if (maxUsersInMemory < 1) {
+			throw new IllegalArgumentException("maxUsersInMemory must be at least 1.");
+		}
+		this.maxUsersInMemory = maxUsersInMemory;
+		this.heapUsers = new ArrayList<User>(Math.min(maxUsersInMemory, 1024));
+		this.attributeNames = new ArrayList<String>();
+		this.attributeNameIndexes = new HashMap<String, Integer>();
+		this.spilledCount = 0;
+		this.closed = false;
+	}
+
+	/**
+	 * Adiciona um utilizador ao fim da lista. Caso j existam maxUsersInMemory utilizadores em memria o utilizador  escrito no ficheiro temporrio.
+	 */
+	@Override
+	public boolean add(User user) {
+		if (spilledCount == 0 && heapUsers.size() < maxUsersInMemory) {
+			heapUsers.add(user);
+		} else {
+			try {
+				spill(user);
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to write user to " + file + ".", e);
+			}
+		}
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Obtem o utilizador na posio index. Os utilizadores guardados em disco so lidos do ficheiro mapeado em memria.
+	 */
+	@Override
+	public User get(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+		if (index < heapUsers.size()) {
+			return heapUsers.get(index);
+		}
+		try {
+			return read(index - heapUsers.size());
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read user from " + file + ".", e);
+		}
+	}
+
+	/**
+	 * Substitui o utilizador na posio index. Caso o utilizador esteja guardado em disco  escrito um novo registo no fim do ficheiro temporrio.
+	 */
+	@Override
+	public User set(int index, User user) {
+		User previous = get(index);
+		if (index < heapUsers.size()) {
+			heapUsers.set(index, user);
+		} else {
+			try {
+				write(user, index - heapUsers.size());
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to write user to " + file + ".", e);
+			}
+		}
+		return previous;
+	}
+
+	/**
+	 * Nmero total de utilizadores (em memria e em disco).
+	 */
+	@Override
+	public int size() {
+		return heapUsers.size() + spilledCount;
+	}
+
+	/**
+	 * Obtem o nmero de utilizadores guardados no ficheiro temporrio.
+	 *
+	 * @return
+	 */
+	public int getSpilledCount() {
+		return spilledCount;
+	}
+
+	/**
+	 * Fecha e apaga o ficheiro temporrio. Depois de fechada a lista deixa de ter os utilizadores guardados em disco.
+	 */
+	public void close() {
+		closed = true;
+		segments = null;
+		writeBuffer = null;
+		recordBuffer = null;
+		offsets = null;
+		lengths = null;
+		spilledCount = 0;
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// Ficheiro j se encontrava fechado
+			}
+			raf = null;
+			channel = null;
+		}
+		if (file != null) {
+			// Em Windows o ficheiro s pode ser apagado depois de os buffers mapeados serem libertados, nesse caso  apagado  sada da JVM
+			file.delete();
+			file = null;
+		}
+	}
+
+	/**
+	 * Escreve o utilizador no fim do ficheiro temporrio.
+	 *
+	 * @param user
+	 * @throws IOException
+	 */
+	private void spill(User user) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("SpillingUserList is closed.");
+		}
+		if (raf == null) {
+			file = File.createTempFile("ldap-users", ".spill");
+			file.deleteOnExit();
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+			recordBuffer = ByteBuffer.allocate(1024);
+			offsets = new long[1024];
+			lengths = new int[1024];
+			segments = new MappedByteBuffer[1];
+			stringBuffer = new byte[256];
+			flushedLength = 0;
+		}
+
+		if (spilledCount == offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			lengths = Arrays.copyOf(lengths, lengths.length * 2);
+		}
+		write(user, spilledCount);
+		spilledCount++;
+	}
+
+	/**
+	 * Escreve o utilizador no fim do ficheiro temporrio como o registo da posio index (relativa aos utilizadores em disco).
+	 *
+	 * @param user
+	 * @param index
+	 * @throws IOException
+	 */
+	private void write(User user, int index) throws IOException {
+		recordBuffer.clear();
+		writeString(user.getDistinguishedName());
+		writeString(user.getFriendlyName());
+		List<UserAttribute> userAttributes = user.getUserAttributes();
+		writeVarInt(userAttributes.size());
+		for (UserAttribute userAttribute : userAttributes) {
+			writeVarInt(getAttributeNameIndex(userAttribute.getName()));
+			ensureRecordCapacity(2);
+			recordBuffer.put((byte) userAttribute.getOp().ordinal());
+			if (userAttribute.getType() == AttributeType.SINGLE_VALUED) {
+				recordBuffer.put(SINGLE_VALUED);
+				writeString(userAttribute.getSingleValue());
+			} else {
+				recordBuffer.put(MULTI_VALUED);
+				List<String> values = userAttribute.getMultiValues();
+				writeVarInt(values == null ? 0 : values.size() + 1);
+				if (values != null) {
+					for (String value : values) {
+						writeString(value);
+					}
+				}
+			}
+		}
+		recordBuffer.flip();
+
+		offsets[index] = flushedLength + writeBuffer.position();
+		lengths[index] = recordBuffer.remaining();
+
+		if (recordBuffer.remaining() > writeBuffer.remaining()) {
+			flush();
+		}
+		if (recordBuffer.remaining() > writeBuffer.remaining()) {
+			// Registo maior que o buffer de escrita  escrito diretamente
+			while (recordBuffer.hasRemaining()) {
+				flushedLength += channel.write(recordBuffer, flushedLength);
+			}
+		} else {
+			writeBuffer.put(recordBuffer);
+		}
+	}
+
+	/**
+	 * Escreve no ficheiro o contedo do buffer de escrita.
+	 *
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		writeBuffer.flip();
+		while (writeBuffer.hasRemaining()) {
+			flushedLength += channel.write(writeBuffer, flushedLength);
+		}
+		writeBuffer.clear();
+	}
+
+	/**
+	 * L o utilizador guardado em disco na posio index do ficheiro.
+	 *
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	private User read(int index) throws IOException {
+		long offset = offsets[index];
+		int length = lengths[index];
+		long end = offset + length;
+		if (end > flushedLength) {
+			flush();
+		}
+
+		ByteBuffer record;
+		int segmentIndex = (int) (offset / SEGMENT_SIZE);
+		long segmentStart = (long) segmentIndex * SEGMENT_SIZE;
+		if (end <= segmentStart + SEGMENT_SIZE) {
+			record = getSegment(segmentIndex, end - segmentStart).duplicate();
+			record.position((int) (offset - segmentStart));
+			record.limit((int) (end - segmentStart));
+		} else {
+			// Registo dividido entre dois segmentos  lido diretamente do ficheiro
+			record = ByteBuffer.allocate(length);
+			while (record.hasRemaining()) {
+				if (channel.read(record, offset + record.position()) < 0) {
+					throw new IOException("Unexpected end of file " + file + ".");
+				}
+			}
+			record.flip();
+		}
+
+		String dn = readString(record);
+		String friendlyName = readString(record);
+		int attributeCount = readVarInt(record);
+		List<UserAttribute> userAttributes = new ArrayList<UserAttribute>(attributeCount);
+		for (int i = 0; i < attributeCount; i++) {
+			String name = attributeNames.get(readVarInt(record));
+			AttributeOp op = AttributeOp.values()[record.get()];
+			if (record.get() == SINGLE_VALUED) {
+				userAttributes.add(new UserAttribute(name, readString(record), op));
+			} else {
+				int valueCount = readVarInt(record) - 1;
+				List<String> values = null;
+				if (valueCount >= 0) {
+					values = new ArrayList<String>(valueCount);
+					for (int j = 0; j < valueCount; j++) {
+						values.add(readString(record));
+					}
+				}
+				userAttributes.add(new UserAttribute(name, values, op));
+			}
+		}
+		return new User(dn, friendlyName, userAttributes);
+	}
+
+	/**
+	 * Obtem o segmento do ficheiro mapeado em memria garantindo que tem pelo menos minLength bytes mapeados.
+	 *
+	 * @param segmentIndex
+	 * @param minLength
+	 * @return
+	 * @throws IOException
+	 */
+	private MappedByteBuffer getSegment(int segmentIndex, long minLength) throws IOException {
+		if (segmentIndex >= segments.length) {
+			segments = Arrays.copyOf(segments, segmentIndex + 1);
+		}
+		MappedByteBuffer segment = segments[segmentIndex];
+		if (segment == null || segment.capacity() < minLength) {
+			long segmentStart = (long) segmentIndex * SEGMENT_SIZE;
+			long length = Math.min(SEGMENT_SIZE, flushedLength - segmentStart);
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, length);
+			segments[segmentIndex] = segment;
+		}
+		return segment;
+	}
+
+	private int getAttributeNameIndex(String name) {
+		Integer index = attributeNameIndexes.get(name);
+		if (index == null) {
+			index = attributeNames.size();
+			attributeNames.add(name);
+			attributeNameIndexes.put(name, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Escreve uma String em UTF-8 precedida do seu tamanho + 1 (0 representa null).
+	 *
+	 * @param value
+	 * @throws UnsupportedEncodingException
+	 */
+	private void writeString(String value) throws UnsupportedEncodingException {
+		if (value == null) {
+			writeVarInt(NULL_MARKER);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		writeVarInt(bytes.length + 1);
+		ensureRecordCapacity(bytes.length);
+		recordBuffer.put(bytes);
+	}
+
+	private String readString(ByteBuffer record) throws UnsupportedEncodingException {
+		int length = readVarInt(record) - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (stringBuffer.length < length) {
+			stringBuffer = new byte[Math.max(length, stringBuffer.length * 2)];
+		}
+		record.get(stringBuffer, 0, length);
+		return new String(stringBuffer, 0, length, "UTF-8");
+	}
+
+	/**
+	 * Escreve um inteiro positivo em 1 a 5 bytes (7 bits por byte).
+	 *
+	 * @param value
+	 */
+	private void writeVarInt(int value) {
+		ensureRecordCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			recordBuffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		recordBuffer.put((byte) value);
+	}
+
+	private static int readVarInt(ByteBuffer record) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = record.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private void ensureRecordCapacity(int length) {
+		if (recordBuffer.remaining() < length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(recordBuffer.capacity() * 2, recordBuffer.position() + length));
+			recordBuffer.flip();
+			larger.put(recordBuffer);
+			recordBuffer = larger;
+		}
+	}
+}
@@ -14,11 +14,12 @@ import java.util.Map;
 public class User {
 
 	private String distinguishedName;
+	private DistinguishedName dn;
 	private String friendlyName;
 	private Map<String, UserAttribute> userAttributes;
 
 	/**
-	 * Utilizador sem atributos.
+	 * Utilizador sem atributos. O DN s  interpretado quando for pedido pelo getDn().
 	 * 
 	 * @param distinguishedName
 	 * @param friendlyName
@@ -26,33 +27,57 @@ public class User {
 	public User(String distinguishedName, String friendlyName) {
 		super();
 		this.distinguishedName = distinguishedName;
+		this.dn = null;
 		this.friendlyName = friendlyName;
 		this.userAttributes = new LinkedHashMap<String, UserAttribute>();
 	}
 
 	/**
-	 * Utilizador com atributos.
+	 * Utilizador sem atributos a partir de um DN j interpretado.
+	 * 
+	 * @param dn
+	 * @param friendlyName
+	 */
+	public User(DistinguishedName dn, String friendlyName) {
+		this((String) null, friendlyName);
+		this.dn = dn;
+	}
+
+	/**
+	 * Utilizador com atributos. O DN s  interpretado quando for pedido pelo getDn().
 	 * 
 	 * @param distinguishedName
 	 * @param friendlyName
 	 * @param userAttributes
 	 */
 	public User(String distinguishedName, String friendlyName, List<UserAttribute> userAttributes) {
-		super();
-		this.distinguishedName = distinguishedName;
-		this.friendlyName = friendlyName;
-		this.userAttributes = new LinkedHashMap<String, UserAttribute>();
+		this(distinguishedName, friendlyName);
 		for (UserAttribute attr : userAttributes) {
 			this.userAttributes.put(attr.getName(), attr);
 		}
 	}
 
 	/**
-	 * Obtem o DistinguishedName (DN) do utilizador no diretrio LDAP
+	 * Utilizador com atributos a partir de um DN j interpretado.
+	 * 
+	 * @param dn
+	 * @param friendlyName
+	 * @param userAttributes
+	 */
+	public User(DistinguishedName dn, String friendlyName, List<UserAttribute> userAttributes) {
+		this((String) null, friendlyName, userAttributes);
+		this.dn = dn;
+	}
+
+	/**
+	 * Obtem o DistinguishedName (DN) do utilizador no diretrio LDAP, tal como foi recebido.
 	 * 
 	 * @return
 	 */
 	public String getDistinguishedName() {
+		if (distinguishedName == null && dn != null) {
+			return dn.toString();
+		}
 		return distinguishedName;
 	}
 
@@ -63,6 +88,30 @@ public class User {
 	 */
 	public void setDistinguishedName(String distinguishedName) {
 		this.distinguishedName = distinguishedName;
+		this.dn = null;
+	}
+
+	/**
+	 * Obtem o DistinguishedName (DN) interpretado do utilizador. Permite comparar DNs equivalentes com equals() e agrupar utilizadores pelo DN pai (getParent()).</p>
+	 * Devolve null se o utilizador no tiver DN. Caso o DN no seja vlido  lanada uma IllegalArgumentException.
+	 * 
+	 * @return
+	 */
+	public DistinguishedName getDn() {
+		if (dn == null && distinguishedName != null) {
+			dn = DistinguishedName.valueOf(distinguishedName);
+		}
+		return dn;
+	}
+
+	/**
+	 * Altera o DistinguishedName (DN) interpretado do utilizador.
+	 * 
+	 * @param dn
+	 */
+	public void setDn(DistinguishedName dn) {
+		this.dn = dn;
+		this.distinguishedName = null;
 	}
 
 	/**
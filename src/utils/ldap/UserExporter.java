@@ -0,0 +1,40 @@
+package utils.ldap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Escreve utilizadores obtidos numa pesquisa LDAP para um ficheiro (ou outro destino)  medida que vo sendo recebidos. Utilizado pelo LdapProxy.exportUsers().</p>
+ * As colunas exportadas so o DN, o friendlyName e os UserAttributes pedidos, por esta ordem.</p>
+ * O mesmo exportador pode ser utilizado em vrias chamadas ao exportUsers() (por exemplo uma por baseDN), desde que com os mesmos UserAttributes. A exportao s termina com o close().
+ *
+ * @author E000161
+ *
+ */
+public interface UserExporter extends Closeable {
+
+	/**
+	 * Inicia a exportao com as colunas dos UserAttributes pedidos. Se userAttributes for null s so exportados o DN e o friendlyName.</p>
+	 * O cabealho s  escrito na primeira invocao: as invocaes seguintes com as mesmas colunas so ignoradas e com colunas diferentes lanam IllegalStateException.
+	 *
+	 * @param userAttributes
+	 * @throws IOException
+	 */
+	void writeHeader(List<UserAttribute> userAttributes) throws IOException;
+
+	/**
+	 * Escreve um utilizador.
+	 *
+	 * @param user
+	 * @throws IOException
+	 */
+	void write(User user) throws IOException;
+
+	/**
+	 * Escreve no destino todos os utilizadores que ainda estejam em buffer. Invocado no fim de cada exportUsers(), podendo depois ser escritos mais utilizadores.
+	 *
+	 * @throws IOException
+	 */
+	void flush() throws IOException;
+}
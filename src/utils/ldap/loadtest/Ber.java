@@ -0,0 +1,260 @@
+package utils.ldap.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Codificao e descodificao BER (subconjunto utilizado pelo protocolo LDAP) para o SimulatedLdapServer.
+ *
+ * @author E000161
+ *
+ */
+final class Ber {
+
+	static final int BOOLEAN = 0x01;
+	static final int INTEGER = 0x02;
+	static final int OCTET_STRING = 0x04;
+	static final int ENUMERATED = 0x0A;
+	static final int SEQUENCE = 0x30;
+	static final int SET = 0x31;
+
+	private Ber() {
+	}
+
+	/**
+	 * L um elemento BER completo (tag, tamanho e contedo) do stream. Devolve null se o stream terminar antes do inicio do elemento.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] readElement(InputStream in) throws IOException {
+		int tag = in.read();
+		if (tag < 0) {
+			return null;
+		}
+		ByteArrayOutputStream header = new ByteArrayOutputStream(6);
+		header.write(tag);
+		int first = readByte(in);
+		header.write(first);
+		int length = first;
+		if ((first & 0x80) != 0) {
+			int count = first & 0x7F;
+			if (count == 0 || count > 4) {
+				throw new IOException("Unsupported BER length encoding.");
+			}
+			length = 0;
+			for (int i = 0; i < count; i++) {
+				int b = readByte(in);
+				header.write(b);
+				length = (length << 8) | b;
+			}
+		}
+		byte[] element = new byte[header.size() + length];
+		System.arraycopy(header.toByteArray(), 0, element, 0, header.size());
+		int offset = header.size();
+		while (offset < element.length) {
+			int read = in.read(element, offset, element.length - offset);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of BER element.");
+			}
+			offset += read;
+		}
+		return element;
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Unexpected end of BER element.");
+		}
+		return b;
+	}
+
+	/**
+	 * Codifica um elemento com a tag e o contedo recebidos.
+	 *
+	 * @param tag
+	 * @param contents
+	 * @return
+	 */
+	static byte[] element(int tag, byte[]... contents) {
+		int length = 0;
+		for (byte[] content : contents) {
+			length += content.length;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+		out.write(tag);
+		if (length < 0x80) {
+			out.write(length);
+		} else if (length <= 0xFF) {
+			out.write(0x81);
+			out.write(length);
+		} else if (length <= 0xFFFF) {
+			out.write(0x82);
+			out.write(length >> 8);
+			out.write(length);
+		} else {
+			out.write(0x84);
+			out.write(length >> 24);
+			out.write(length >> 16);
+			out.write(length >> 8);
+			out.write(length);
+		}
+		for (byte[] content : contents) {
+			out.write(content, 0, content.length);
+		}
+		return out.toByteArray();
+	}
+
+	static byte[] integer(int tag, long value) {
+		int size = 1;
+		while (size < 8 && (value >> (size * 8 - 1)) != 0 && (value >> (size * 8 - 1)) != -1) {
+			size++;
+		}
+		byte[] content = new byte[size];
+		for (int i = size - 1; i >= 0; i--) {
+			content[i] = (byte) value;
+			value >>= 8;
+		}
+		return element(tag, content);
+	}
+
+	static byte[] octetString(String value) {
+		return element(OCTET_STRING, utf8(value));
+	}
+
+	static byte[] octetString(byte[] value) {
+		return element(OCTET_STRING, value);
+	}
+
+	static byte[] utf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Leitor de elementos BER dentro de um array de bytes.
+	 */
+	static final class Reader {
+
+		private final byte[] data;
+		private int position;
+		private final int end;
+
+		Reader(byte[] data) {
+			this(data, 0, data.length);
+		}
+
+		private Reader(byte[] data, int position, int end) {
+			this.data = data;
+			this.position = position;
+			this.end = end;
+		}
+
+		/**
+		 * Obtem um novo leitor na posio atual, sem alterar este leitor.
+		 *
+		 * @return
+		 */
+		Reader duplicate() {
+			return new Reader(data, position, end);
+		}
+
+		boolean hasMore() {
+			return position < end;
+		}
+
+		/**
+		 * Obtem a tag do prximo elemento sem o consumir.
+		 *
+		 * @return
+		 */
+		int peekTag() throws IOException {
+			if (position >= end) {
+				throw new EOFException("No more BER elements.");
+			}
+			return data[position] & 0xFF;
+		}
+
+		/**
+		 * L o prximo elemento devolvendo um leitor para o seu contedo.
+		 *
+		 * @param expectedTag
+		 * @return
+		 * @throws IOException
+		 */
+		Reader read(int expectedTag) throws IOException {
+			int tag = peekTag();
+			if (tag != expectedTag) {
+				throw new IOException("Unexpected BER tag 0x" + Integer.toHexString(tag) + ", expected 0x" + Integer.toHexString(expectedTag) + ".");
+			}
+			return readAny();
+		}
+
+		/**
+		 * L o prximo elemento, qualquer que seja a sua tag, devolvendo um leitor para o seu contedo.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		Reader readAny() throws IOException {
+			peekTag();
+			position++;
+			int length = data[position++] & 0xFF;
+			if ((length & 0x80) != 0) {
+				int count = length & 0x7F;
+				length = 0;
+				for (int i = 0; i < count; i++) {
+					length = (length << 8) | (data[position++] & 0xFF);
+				}
+			}
+			if (length < 0 || position + length > end) {
+				throw new IOException("Invalid BER length.");
+			}
+			Reader content = new Reader(data, position, position + length);
+			position += length;
+			return content;
+		}
+
+		long readInteger(int tag) throws IOException {
+			return read(tag).toInteger();
+		}
+
+		String readString(int tag) throws IOException {
+			return read(tag).toUtf8();
+		}
+
+		boolean readBoolean() throws IOException {
+			return read(BOOLEAN).toInteger() != 0;
+		}
+
+		long toInteger() {
+			long value = (position < end ? data[position] : 0); // sinal
+			for (int i = position + 1; i < end; i++) {
+				value = (value << 8) | (data[i] & 0xFF);
+			}
+			return value;
+		}
+
+		String toUtf8() {
+			try {
+				return new String(data, position, end - position, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		byte[] toBytes() {
+			byte[] result = new byte[end - position];
+			System.arraycopy(data, position, result, 0, result.length);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package utils.ldap.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+
+import utils.ldap.AttributeType;
+import utils.ldap.LdapProxy;
+import utils.ldap.LdapReplica;
+import utils.ldap.User;
+import utils.ldap.UserAttribute;
+import utils.ldap.UserExporter;
+
+/**
+ * Teste de carga de um diretrio LDAP atravs do LdapProxy. Executa durante um perodo de tempo, com o nmero de threads indicado, uma mistura de:
+ * <ul>
+ * <li>LOOKUP: pesquisa de um utilizador pelo lookupAttribute (getUser);</li>
+ * <li>SWEEP: pesquisa (paginada, conforme o LdapProxy) de todos os utilizadores do baseDN (exportUsers sem escrever os resultados);</li>
+ * <li>MODIFY: modificao de um lote de utilizadores (modifyUsers) alterando o atributo description.</li>
+ * </ul>
+ * Qualquer excepo de uma operao (incluindo RuntimeException)  contada como erro sem terminar a thread. No fim devolve um LoadTestReport com o dbito e os percentis de latncia de cada operao, separando os pedidos com sucesso dos que falharam.</p>
+ * O main() permite executar o teste contra um ou mais SimulatedLdapServer locais (ver usage()).
+ *
+ * @author E000161
+ *
+ */
+public class LdapLoadTest {
+
+	private final LdapProxy proxy;
+	private final String baseDN;
+	private final String lookupAttribute;
+	private final List<String> lookupValues;
+	private final List<UserAttribute> userAttributes;
+
+	private int concurrency;
+	private long durationMillis;
+	private int lookupWeight;
+	private int sweepWeight;
+	private int modifyWeight;
+	private int modifyBatchSize;
+
+	/**
+	 * Cria um teste de carga sobre os utilizadores do baseDN. Os utilizadores so identificados pelo lookupAttribute (que deve ser o atributo do RDN, ex: uid) e pelos valores lookupValues.</p>
+	 * Por defeito o teste corre durante 30 segundos com 4 threads e uma mistura de 80% LOOKUP, 1% SWEEP e 19% MODIFY (lotes de 10 utilizadores).
+	 *
+	 * @param proxy
+	 *            LdapProxy j ligado (openLdapConnection()).
+	 * @param baseDN
+	 * @param lookupAttribute
+	 * @param lookupValues
+	 */
+	public LdapLoadTest(LdapProxy proxy, String baseDN, String lookupAttribute, List<String> lookupValues) {
+		if (lookupValues.isEmpty()) {
+			throw new IllegalArgumentException("At least one lookup value is required.");
+		}
+		this.proxy = proxy;
+		this.baseDN = baseDN;
+		this.lookupAttribute = lookupAttribute;
+		this.lookupValues = new ArrayList<String>(lookupValues);
+		this.userAttributes = new ArrayList<UserAttribute>();
+		this.userAttributes.add(new UserAttribute("cn", AttributeType.SINGLE_VALUED));
+		this.userAttributes.add(new UserAttribute("mail", AttributeType.SINGLE_VALUED));
+		this.userAttributes.add(new UserAttribute("memberOf", AttributeType.MULTI_VALUED));
+		this.concurrency = 4;
+		this.durationMillis = 30000;
+		this.lookupWeight = 80;
+		this.sweepWeight = 1;
+		this.modifyWeight = 19;
+		this.modifyBatchSize = 10;
+	}
+
+	/**
+	 * Define o nmero de threads que fazem pedidos em simultneo.
+	 *
+	 * @param concurrency
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Define a durao do teste em milissegundos.
+	 *
+	 * @param durationMillis
+	 */
+	public void setDurationMillis(long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * Define o peso relativo de cada tipo de operao na mistura (ex: 80, 1, 19). Utilizar 0 para excluir uma operao.
+	 *
+	 * @param lookupWeight
+	 * @param sweepWeight
+	 * @param modifyWeight
+	 */
+	public void setMix(int lookupWeight, int sweepWeight, int modifyWeight) {
+		if (lookupWeight + sweepWeight + modifyWeight <= 0) {
+			throw new IllegalArgumentException("At least one operation weight must be positive.");
+		}
+		this.lookupWeight = lookupWeight;
+		this.sweepWeight = sweepWeight;
+		this.modifyWeight = modifyWeight;
+	}
+
+	/**
+	 * Define o nmero de utilizadores modificados em cada operao MODIFY.
+	 *
+	 * @param modifyBatchSize
+	 */
+	public void setModifyBatchSize(int modifyBatchSize) {
+		this.modifyBatchSize = modifyBatchSize;
+	}
+
+	/**
+	 * Executa o teste de carga e devolve as estatsticas de cada operao.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public LoadTestReport run() throws InterruptedException {
+		final Map<Operation, LoadTestReport.OperationStats> stats = new EnumMap<Operation, LoadTestReport.OperationStats>(Operation.class);
+		for (Operation operation : Operation.values()) {
+			stats.put(operation, new LoadTestReport.OperationStats(operation.name()));
+		}
+
+		long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			final Random random = new Random(start + i);
+			executor.execute(new Runnable() {
+				public void run() {
+					while (System.nanoTime() < deadline) {
+						Operation operation = nextOperation(random);
+						long operationStart = System.nanoTime();
+						Throwable error = null;
+						try {
+							execute(operation, random);
+						} catch (NamingException e) {
+							error = e;
+						} catch (IOException e) {
+							error = e;
+						} catch (RuntimeException e) {
+							// Ex: IllegalStateException do LdapProxy, no deve terminar a thread do teste nem perder o pedido
+							error = e;
+						}
+						stats.get(operation).record(System.nanoTime() - operationStart, error);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+			// Aguardar que os pedidos em curso terminem
+		}
+
+		List<LoadTestReport.OperationStats> result = new ArrayList<LoadTestReport.OperationStats>();
+		for (Operation operation : Operation.values()) {
+			if (stats.get(operation).getCount() > 0) {
+				result.add(stats.get(operation));
+			}
+		}
+		return new LoadTestReport(System.nanoTime() - start, result);
+	}
+
+	private Operation nextOperation(Random random) {
+		int value = random.nextInt(lookupWeight + sweepWeight + modifyWeight);
+		if (value < lookupWeight) {
+			return Operation.LOOKUP;
+		} else if (value < lookupWeight + sweepWeight) {
+			return Operation.SWEEP;
+		} else {
+			return Operation.MODIFY;
+		}
+	}
+
+	private void execute(Operation operation, Random random) throws NamingException, IOException {
+		switch (operation) {
+		case LOOKUP:
+			String lookupValue = lookupValues.get(random.nextInt(lookupValues.size()));
+			if (proxy.getUser(baseDN, "(" + lookupAttribute + "=" + lookupValue + ")", userAttributes, null) == null) {
+				throw new NamingException("User " + lookupValue + " not found.");
+			}
+			break;
+		case SWEEP:
+			proxy.exportUsers(baseDN, "(objectClass=*)", userAttributes, null, new DiscardingExporter());
+			break;
+		case MODIFY:
+			List<User> users = new ArrayList<User>(modifyBatchSize);
+			for (int i = 0; i < modifyBatchSize; i++) {
+				String value = lookupValues.get(random.nextInt(lookupValues.size()));
+				User user = new User(lookupAttribute + "=" + value + "," + baseDN, value);
+				user.addUserAttribute(new UserAttribute("description", "load test " + random.nextInt()));
+				users.add(user);
+			}
+			proxy.modifyUsers(users);
+			break;
+		}
+	}
+
+	/**
+	 * Executa o teste de carga contra SimulatedLdapServers locais. Os argumentos tm o formato chave=valor (ver usage()).
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("users", "10000");
+		options.put("replicas", "1");
+		options.put("latency", "2");
+		options.put("jitter", "2");
+		options.put("maxPageSize", "1000");
+		options.put("pageSize", "500");
+		options.put("busy", "0");
+		options.put("error", "0");
+		options.put("concurrency", "8");
+		options.put("duration", "30");
+		options.put("mix", "80,1,19");
+		options.put("batch", "10");
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0 || !options.containsKey(arg.substring(0, equals))) {
+				System.err.println(usage());
+				System.exit(1);
+			}
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+
+		String baseDN = "ou=people,dc=example,dc=com";
+		String bindDN = "cn=admin,dc=example,dc=com";
+		String password = "secret";
+		List<SimulatedLdapServer> servers = new ArrayList<SimulatedLdapServer>();
+		List<String> urls = new ArrayList<String>();
+		List<String> uids = null;
+		for (int i = 0; i < Integer.parseInt(options.get("replicas")); i++) {
+			SimulatedLdapServer server = new SimulatedLdapServer(bindDN, password);
+			uids = server.addUsers(baseDN, Integer.parseInt(options.get("users")));
+			server.setLatency(Integer.parseInt(options.get("latency")), Integer.parseInt(options.get("jitter")));
+			server.setMaxPageSize(Integer.parseInt(options.get("maxPageSize")));
+			server.start(0);
+			servers.add(server);
+			urls.add(server.getUrl());
+		}
+
+		LdapProxy proxy = new LdapProxy(urls, bindDN, password, Integer.parseInt(options.get("pageSize")), false);
+		proxy.openLdapConnection();
+		try {
+			// As falhas s so injetadas depois do bind inicial, para o teste poder arrancar
+			for (SimulatedLdapServer server : servers) {
+				server.setFailureRates(Double.parseDouble(options.get("busy")), Double.parseDouble(options.get("error")));
+			}
+			LdapLoadTest loadTest = new LdapLoadTest(proxy, baseDN, "uid", uids);
+			loadTest.setConcurrency(Integer.parseInt(options.get("concurrency")));
+			loadTest.setDurationMillis(Long.parseLong(options.get("duration")) * 1000);
+			String[] mix = options.get("mix").split(",");
+			loadTest.setMix(Integer.parseInt(mix[0].trim()), Integer.parseInt(mix[1].trim()), Integer.parseInt(mix[2].trim()));
+			loadTest.setModifyBatchSize(Integer.parseInt(options.get("batch")));
+
+			System.out.println("Running load test with " + options);
+			System.out.print(loadTest.run());
+			for (LdapReplica replica : proxy.getReplicas()) {
+				System.out.println(replica);
+			}
+		} finally {
+			proxy.closeLdapConnection();
+			for (SimulatedLdapServer server : servers) {
+				server.stop();
+			}
+		}
+	}
+
+	private static String usage() {
+		return "Usage: LdapLoadTest [key=value ...]\n" //
+				+ "  users=10000        users in each simulated server\n" //
+				+ "  replicas=1         number of simulated servers (replicas)\n" //
+				+ "  latency=2          injected latency per response (ms)\n" //
+				+ "  jitter=2           random extra latency per response (ms)\n" //
+				+ "  maxPageSize=1000   server page/size limit (0 = no limit)\n" //
+				+ "  pageSize=500       client page size (0 = no paged search)\n" //
+				+ "  busy=0             probability of a busy response\n" //
+				+ "  error=0            probability of an error response\n" //
+				+ "  concurrency=8      client threads\n" //
+				+ "  duration=30        test duration (s)\n" //
+				+ "  mix=80,1,19        weights of LOOKUP, SWEEP and MODIFY\n" //
+				+ "  batch=10           users per MODIFY";
+	}
+
+	/**
+	 * Tipos de operao executados pelo teste de carga.
+	 */
+	private enum Operation {
+		LOOKUP , SWEEP , MODIFY
+	}
+
+	/**
+	 * Exporter que descarta os utilizadores, utilizado para medir apenas o custo da pesquisa.
+	 */
+	private static final class DiscardingExporter implements UserExporter {
+
+		public void writeHeader(List<UserAttribute> userAttributes) {
+		}
+
+		public void write(User user) {
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package utils.ldap.loadtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resultado de um teste de carga (LdapLoadTest): nmero de pedidos, erros, dbito e percentis de latncia por tipo de operao.
+ *
+ * @author E000161
+ *
+ */
+public class LoadTestReport {
+
+	private final long elapsedNanos;
+	private final List<OperationStats> operations;
+
+	LoadTestReport(long elapsedNanos, List<OperationStats> operations) {
+		this.elapsedNanos = elapsedNanos;
+		this.operations = Collections.unmodifiableList(new ArrayList<OperationStats>(operations));
+	}
+
+	/**
+	 * Obtem a durao do teste em segundos.
+	 *
+	 * @return
+	 */
+	public double getElapsedSeconds() {
+		return elapsedNanos / 1e9;
+	}
+
+	/**
+	 * Obtem as estatsticas de cada tipo de operao.
+	 *
+	 * @return
+	 */
+	public List<OperationStats> getOperations() {
+		return operations;
+	}
+
+	/**
+	 * Imprime uma tabela com as estatsticas de cada tipo de operao (latncias em milissegundos) e o primeiro erro de cada operao que falhou. Os percentis so dos pedidos com sucesso e a coluna err p50  a mediana da latncia dos pedidos que falharam.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		result.append(String.format("Elapsed: %.1f s%n", getElapsedSeconds()));
+		result.append(String.format("%-10s %10s %8s %10s %9s %9s %9s %9s %9s%n", "operation", "count", "errors", "ops/s", "p50", "p90", "p99", "max", "err p50"));
+		for (OperationStats stats : operations) {
+			result.append(String.format("%-10s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", stats.getName(), stats.getCount(), stats.getErrorCount(), stats.getCount() / getElapsedSeconds(), stats.getPercentileMillis(50), stats.getPercentileMillis(90), stats.getPercentileMillis(99), stats.getPercentileMillis(100), stats.getErrorPercentileMillis(50)));
+		}
+		for (OperationStats stats : operations) {
+			if (stats.getFirstError() != null) {
+				result.append(String.format("First %s error: %s%n", stats.getName(), stats.getFirstError()));
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Latncias registadas para um tipo de operao, separando os pedidos com sucesso dos que falharam (que tipicamente terminam muito mais cedo ou no timeout). O registo  thread-safe.
+	 */
+	public static class OperationStats {
+
+		private final String name;
+		private final Latencies successLatencies;
+		private final Latencies errorLatencies;
+		private Throwable firstError;
+
+		OperationStats(String name) {
+			this.name = name;
+			this.successLatencies = new Latencies();
+			this.errorLatencies = new Latencies();
+			this.firstError = null;
+		}
+
+		/**
+		 * Regista um pedido. O error  null se o pedido teve sucesso.
+		 */
+		synchronized void record(long latencyNanos, Throwable error) {
+			if (error == null) {
+				successLatencies.add(latencyNanos);
+			} else {
+				errorLatencies.add(latencyNanos);
+				if (firstError == null) {
+					firstError = error;
+				}
+			}
+		}
+
+		/**
+		 * Obtem o nome da operao.
+		 *
+		 * @return
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Obtem o nmero de pedidos feitos (incluindo os que falharam).
+		 *
+		 * @return
+		 */
+		public synchronized int getCount() {
+			return successLatencies.count + errorLatencies.count;
+		}
+
+		/**
+		 * Obtem o nmero de pedidos que falharam.
+		 *
+		 * @return
+		 */
+		public synchronized int getErrorCount() {
+			return errorLatencies.count;
+		}
+
+		/**
+		 * Obtem o primeiro erro registado ou null se nenhum pedido falhou.
+		 *
+		 * @return
+		 */
+		public synchronized Throwable getFirstError() {
+			return firstError;
+		}
+
+		/**
+		 * Obtem o percentil (entre 0 e 100) da latncia em milissegundos dos pedidos com sucesso. O percentil 100  a latncia mxima. Devolve 0 se no houver pedidos com sucesso.
+		 *
+		 * @param percentile
+		 * @return
+		 */
+		public synchronized double getPercentileMillis(double percentile) {
+			return successLatencies.getPercentileMillis(percentile);
+		}
+
+		/**
+		 * Obtem o percentil (entre 0 e 100) da latncia em milissegundos dos pedidos que falharam. Devolve 0 se nenhum pedido falhou.
+		 *
+		 * @param percentile
+		 * @return
+		 */
+		public synchronized double getErrorPercentileMillis(double percentile) {
+			return errorLatencies.getPercentileMillis(percentile);
+		}
+	}
+
+	/**
+	 * Lista de latncias (em nanosegundos) ordenada apenas quando  pedido um percentil. No  thread-safe,  protegida pelo OperationStats.
+	 */
+	private static final class Latencies {
+
+		private long[] values;
+		private int count;
+		private boolean isSorted;
+
+		Latencies() {
+			this.values = new long[1024];
+			this.count = 0;
+			this.isSorted = false;
+		}
+
+		void add(long latencyNanos) {
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = latencyNanos;
+			isSorted = false;
+		}
+
+		double getPercentileMillis(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			if (!isSorted) {
+				Arrays.sort(values, 0, count);
+				isSorted = true;
+			}
+			int rank = (int) Math.ceil(percentile / 100 * count);
+			return values[Math.min(Math.max(rank, 1), count) - 1] / 1e6;
+		}
+	}
+}
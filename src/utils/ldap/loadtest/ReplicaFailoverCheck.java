@@ -0,0 +1,176 @@
+package utils.ldap.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.ldap.LdapProxy;
+import utils.ldap.LdapReplica;
+
+/**
+ * Verificao do failover do LdapProxy entre rplicas, utilizando vrios SimulatedLdapServer locais como rplicas do mesmo diretrio.</p>
+ * Para cada cenrio  aberto um LdapProxy sobre duas rplicas, uma das rplicas  avariada e so feitas vrias leituras (getUser), que devem ter todas sucesso:
+ * <ul>
+ * <li>STOPPED: a rplica  parada (ligao fechada pelo servidor);</li>
+ * <li>STALLED: a rplica deixa de responder dentro do readTimeout, devendo ficar indisponvel aps o checkReplicas();</li>
+ * <li>BUSY: a rplica responde sempre busy (51), devendo continuar disponvel mesmo aps o checkReplicas().</li>
+ * </ul>
+ * Cada cenrio  repetido avariando alternadamente cada uma das rplicas.  ainda verificado que um LdapProxy com uma nica rplica volta a responder logo aps uma resposta lenta (readTimeout) quando o servidor j recuperou.</p>
+ * O main() termina com cdigo 1 se alguma verificao falhar.
+ *
+ * @author E000161
+ *
+ */
+public class ReplicaFailoverCheck {
+
+	private static final String BASE_DN = "ou=people,dc=example,dc=com";
+	private static final String BIND_DN = "cn=admin,dc=example,dc=com";
+	private static final String PASSWORD = "secret";
+	private static final int READ_TIMEOUT = 1000;
+	private static final int RUNS = 4;
+	private static final int READS = 5;
+
+	/**
+	 * Cenrios de avaria de uma rplica.
+	 */
+	private enum Scenario {
+		STOPPED , STALLED , BUSY
+	}
+
+	/**
+	 * Executa todos os cenrios imprimindo o resultado de cada um.
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int failures = 0;
+		for (Scenario scenario : Scenario.values()) {
+			for (int run = 0; run < RUNS; run++) {
+				String error = check(scenario, run % 2);
+				System.out.println(scenario + " (replica " + (run % 2) + " broken): " + (error == null ? "OK" : "FAILED - " + error));
+				if (error != null) {
+					failures++;
+				}
+			}
+		}
+		String error = checkSingleReplicaRecovery();
+		System.out.println("RECOVERED (single replica): " + (error == null ? "OK" : "FAILED - " + error));
+		if (error != null) {
+			failures++;
+		}
+		System.out.println(failures == 0 ? "All checks passed." : failures + " checks failed.");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Executa um cenrio avariando a rplica brokenIndex. Devolve null se o LdapProxy se comportou como esperado ou a descrio do erro.
+	 *
+	 * @param scenario
+	 * @param brokenIndex
+	 * @return
+	 * @throws Exception
+	 */
+	private static String check(Scenario scenario, int brokenIndex) throws Exception {
+		List<SimulatedLdapServer> servers = new ArrayList<SimulatedLdapServer>();
+		List<String> urls = new ArrayList<String>();
+		List<String> uids = null;
+		for (int i = 0; i < 2; i++) {
+			SimulatedLdapServer server = new SimulatedLdapServer(BIND_DN, PASSWORD);
+			uids = server.addUsers(BASE_DN, 20);
+			server.start(0);
+			servers.add(server);
+			urls.add(server.getUrl());
+		}
+
+		LdapProxy proxy = new LdapProxy(urls, BIND_DN, PASSWORD, 0, false);
+		proxy.setReadTimeout(READ_TIMEOUT);
+		proxy.openLdapConnection();
+		try {
+			SimulatedLdapServer broken = servers.get(brokenIndex);
+			switch (scenario) {
+			case STOPPED:
+				broken.stop();
+				break;
+			case STALLED:
+				broken.setLatency(READ_TIMEOUT * 3, 0);
+				break;
+			case BUSY:
+				broken.setFailureRates(1, 0);
+				break;
+			}
+
+			for (int i = 0; i < READS; i++) {
+				String uid = uids.get(i);
+				try {
+					if (proxy.getUser(BASE_DN, "(uid=" + uid + ")", null, null) == null) {
+						return "user " + uid + " not found";
+					}
+				} catch (Exception e) {
+					return "getUser failed with " + e;
+				}
+			}
+
+			LdapReplica brokenReplica = proxy.getReplicas().get(brokenIndex);
+			if (scenario == Scenario.BUSY) {
+				if (!brokenReplica.isHealthy()) {
+					return "busy replica was marked unhealthy: " + brokenReplica;
+				}
+				proxy.checkReplicas();
+				if (!brokenReplica.isHealthy()) {
+					return "busy replica was marked unhealthy by checkReplicas(): " + brokenReplica;
+				}
+			}
+			if (scenario == Scenario.STALLED) {
+				proxy.checkReplicas();
+				if (brokenReplica.isHealthy()) {
+					return "stalled replica is still healthy: " + brokenReplica;
+				}
+			}
+			return null;
+		} finally {
+			proxy.closeLdapConnection();
+			for (SimulatedLdapServer server : servers) {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * Um LdapProxy com uma nica rplica tem uma resposta lenta (que excede o readTimeout) e o servidor recupera de seguida. As leituras seguintes devem ter sucesso sem esperar pelo intervalo de espera da rplica.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	private static String checkSingleReplicaRecovery() throws Exception {
+		SimulatedLdapServer server = new SimulatedLdapServer(BIND_DN, PASSWORD);
+		List<String> uids = server.addUsers(BASE_DN, 20);
+		server.start(0);
+		LdapProxy proxy = new LdapProxy(server.getUrl(), BIND_DN, PASSWORD, 0);
+		proxy.setReadTimeout(READ_TIMEOUT);
+		proxy.openLdapConnection();
+		try {
+			server.setLatency(READ_TIMEOUT * 2, 0);
+			try {
+				proxy.getUser(BASE_DN, "(uid=" + uids.get(0) + ")", null, null);
+				return "slow response did not time out";
+			} catch (Exception e) {
+				// Esperado: readTimeout
+			}
+			server.setLatency(0, 0);
+			for (int i = 0; i < READS; i++) {
+				String uid = uids.get(i);
+				try {
+					if (proxy.getUser(BASE_DN, "(uid=" + uid + ")", null, null) == null) {
+						return "user " + uid + " not found";
+					}
+				} catch (Exception e) {
+					return "getUser after recovery failed with " + e;
+				}
+			}
+			return null;
+		} finally {
+			proxy.closeLdapConnection();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,1082 @@
+package utils.ldap.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.ldap.DistinguishedName;
+
+/**
+ * Servidor LDAP (v3) em memria para testes de carga locais. Suporta bind simples, pesquisa (com filtros e pesquisa paginada), modificao, adio e remoo de entradas.</p>
+ * Permite simular as condies de um diretrio real atravs de:
+ * <ul>
+ * <li>latncia injetada em cada resposta (latencyMillis mais um valor aleatrio at jitterMillis);</li>
+ * <li>limite de entradas por pgina/pesquisa (maxPageSize): as pginas pedidas so reduzidas a este tamanho e as pesquisas no paginadas devolvem sizeLimitExceeded, tal como o MaxPageSize do Active Directory;</li>
+ * <li>respostas busy (resultCode 51) e de erro (resultCode 80) com a probabilidade indicada.</li>
+ * </ul>
+ * As entradas so indexadas por DN, por DN pai (para percorrer o scope da pesquisa sem copiar entradas) e pelo valor dos atributos indicados em setIndexedAttributes() (por defeito uid), utilizado nas pesquisas com filtros de igualdade. As pesquisas no bloqueiam as alteraes ao diretrio.</p>
+ * Os pedidos de cada ligao so processados em paralelo. No pretende ser um servidor LDAP completo: no suporta esquema, aliases, referrals nem SSL.
+ *
+ * @author E000161
+ *
+ */
+public class SimulatedLdapServer {
+
+	private static final String PAGED_RESULTS_OID = "1.2.840.113556.1.4.319";
+
+	private static final int SUCCESS = 0;
+	private static final int PROTOCOL_ERROR = 2;
+	private static final int SIZE_LIMIT_EXCEEDED = 4;
+	private static final int ATTRIBUTE_OR_VALUE_EXISTS = 20;
+	private static final int NO_SUCH_OBJECT = 32;
+	private static final int INVALID_CREDENTIALS = 49;
+	private static final int INSUFFICIENT_ACCESS_RIGHTS = 50;
+	private static final int BUSY = 51;
+	private static final int UNWILLING_TO_PERFORM = 53;
+	private static final int NOT_ALLOWED_ON_NON_LEAF = 66;
+	private static final int ENTRY_ALREADY_EXISTS = 68;
+	private static final int OTHER = 80;
+
+	private static final int MAX_CURSORS = 1000;
+	private static final Entry[] NO_ENTRIES = new Entry[0];
+
+	private final String bindDN;
+	private final String password;
+	private final Map<DistinguishedName, Entry> entries;
+	private final Map<DistinguishedName, Map<DistinguishedName, Entry>> children;
+	private final Map<String, Map<String, Entry[]>> equalityIndexes;
+	private final Map<String, Cursor> cursors;
+	private final AtomicLong cursorIds;
+	private final List<Socket> connections;
+	private final Random random;
+	private final AtomicLong operationCount;
+
+	private volatile int latencyMillis;
+	private volatile int jitterMillis;
+	private volatile int maxPageSize;
+	private volatile double busyRate;
+	private volatile double errorRate;
+
+	private ServerSocket serverSocket;
+	private ExecutorService executor;
+
+	/**
+	 * Cria um servidor que aceita o bind com o bindDN e password recebidos. O servidor s fica disponvel depois de invocado o start().
+	 *
+	 * @param bindDN
+	 * @param password
+	 */
+	public SimulatedLdapServer(String bindDN, String password) {
+		this.bindDN = bindDN;
+		this.password = password;
+		this.entries = new ConcurrentHashMap<DistinguishedName, Entry>();
+		this.children = new ConcurrentHashMap<DistinguishedName, Map<DistinguishedName, Entry>>();
+		this.equalityIndexes = new ConcurrentHashMap<String, Map<String, Entry[]>>();
+		this.equalityIndexes.put("uid", new ConcurrentHashMap<String, Entry[]>());
+		this.cursors = Collections.synchronizedMap(new LinkedHashMap<String, Cursor>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Cursor> eldest) {
+				// Pesquisas paginadas abandonadas pelo cliente
+				return size() > MAX_CURSORS;
+			}
+		});
+		this.cursorIds = new AtomicLong();
+		this.connections = new CopyOnWriteArrayList<Socket>();
+		this.random = new Random();
+		this.operationCount = new AtomicLong();
+		this.latencyMillis = 0;
+		this.jitterMillis = 0;
+		this.maxPageSize = 0;
+		this.busyRate = 0;
+		this.errorRate = 0;
+	}
+
+	/**
+	 * Define a latncia injetada em cada resposta: latencyMillis mais um valor aleatrio entre 0 e jitterMillis.
+	 *
+	 * @param latencyMillis
+	 * @param jitterMillis
+	 */
+	public void setLatency(int latencyMillis, int jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+	}
+
+	/**
+	 * Define o nmero mximo de entradas devolvidas por pgina (ou por pesquisa no paginada). Utilizar 0 para no limitar.
+	 *
+	 * @param maxPageSize
+	 */
+	public void setMaxPageSize(int maxPageSize) {
+		this.maxPageSize = maxPageSize;
+	}
+
+	/**
+	 * Define a probabilidade (entre 0 e 1) de cada pedido ser respondido com busy (51) e com erro (80).
+	 *
+	 * @param busyRate
+	 * @param errorRate
+	 */
+	public void setFailureRates(double busyRate, double errorRate) {
+		this.busyRate = busyRate;
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * Define os atributos indexados por valor (por defeito uid). As pesquisas cujo filtro seja uma igualdade num destes atributos (ou um and que a contenha) s avaliam as entradas com esse valor. Os ndices so reconstrudos com as entradas existentes.
+	 *
+	 * @param attributeNames
+	 */
+	public void setIndexedAttributes(String... attributeNames) {
+		synchronized (entries) {
+			equalityIndexes.clear();
+			for (String attributeName : attributeNames) {
+				equalityIndexes.put(attributeName.toLowerCase(Locale.ENGLISH), new ConcurrentHashMap<String, Entry[]>());
+			}
+			for (Entry entry : entries.values()) {
+				addToIndexes(entry);
+			}
+		}
+	}
+
+	/**
+	 * Obtem o nmero de pedidos processados pelo servidor.
+	 *
+	 * @return
+	 */
+	public long getOperationCount() {
+		return operationCount.get();
+	}
+
+	/**
+	 * Adiciona uma entrada ao diretrio. Os nomes dos atributos so case-insensitive. A entrada pai j tem de existir.
+	 *
+	 * @param dn
+	 * @param attributes
+	 */
+	public void addEntry(String dn, Map<String, List<String>> attributes) {
+		int resultCode = addEntry(DistinguishedName.valueOf(dn), attributes);
+		if (resultCode == ENTRY_ALREADY_EXISTS) {
+			throw new IllegalArgumentException("Entry " + dn + " already exists.");
+		} else if (resultCode != SUCCESS) {
+			throw new IllegalArgumentException("Unable to add entry " + dn + " (resultCode " + resultCode + ").");
+		}
+	}
+
+	/**
+	 * Adiciona ao diretrio a entrada baseDN (e os seus pais) e count utilizadores inetOrgPerson com os DNs uid=user0000001,baseDN.</p>
+	 * Cada utilizador tem os atributos uid, cn, sn, mail, employeeNumber e memberOf (3 grupos). Devolve os uids criados.
+	 *
+	 * @param baseDN
+	 * @param count
+	 * @return
+	 */
+	public List<String> addUsers(String baseDN, int count) {
+		DistinguishedName base = DistinguishedName.valueOf(baseDN);
+		List<DistinguishedName> missing = new ArrayList<DistinguishedName>();
+		synchronized (entries) {
+			for (DistinguishedName dn = base; dn.size() > 0 && !entries.containsKey(dn); dn = dn.getParent()) {
+				missing.add(0, dn);
+			}
+		}
+		for (DistinguishedName dn : missing) {
+			Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+			attributes.put("objectClass", Arrays.asList("top", "organizationalUnit"));
+			attributes.put(dn.getRdn().substring(0, dn.getRdn().indexOf('=')).trim(), Arrays.asList(dn.getRdnValue()));
+			addEntry(dn, attributes);
+		}
+
+		List<String> uids = new ArrayList<String>(count);
+		for (int i = 1; i <= count; i++) {
+			String uid = String.format("user%07d", i);
+			Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+			attributes.put("objectClass", Arrays.asList("top", "person", "organizationalPerson", "inetOrgPerson"));
+			attributes.put("uid", Arrays.asList(uid));
+			attributes.put("cn", Arrays.asList("User " + i));
+			attributes.put("sn", Arrays.asList("Surname" + (i % 1000)));
+			attributes.put("mail", Arrays.asList(uid + "@example.com"));
+			attributes.put("employeeNumber", Arrays.asList(String.valueOf(i)));
+			attributes.put("memberOf", Arrays.asList("cn=group" + (i % 10) + "," + baseDN, "cn=department" + (i % 100) + "," + baseDN, "cn=all," + baseDN));
+			addEntry(base.getChild("uid=" + uid), attributes);
+			uids.add(uid);
+		}
+		return uids;
+	}
+
+	/**
+	 * Inicia o servidor no porto indicado (0 para um porto livre) aceitando apenas ligaes locais.
+	 *
+	 * @param port
+	 * @throws IOException
+	 */
+	public void start(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SimulatedLdapServer-" + serverSocket.getLocalPort());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.execute(new Runnable() {
+			public void run() {
+				acceptConnections();
+			}
+		});
+	}
+
+	/**
+	 * Obtem o porto onde o servidor est  escuta.
+	 *
+	 * @return
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Obtem o url (host:porto) do servidor no formato utilizado pelo LdapProxy.
+	 *
+	 * @return
+	 */
+	public String getUrl() {
+		return "127.0.0.1:" + getPort();
+	}
+
+	/**
+	 * Pra o servidor fechando todas as ligaes.
+	 */
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Servidor j se encontrava parado
+		}
+		for (Socket socket : connections) {
+			closeQuietly(socket);
+		}
+		executor.shutdownNow();
+	}
+
+	private void acceptConnections() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				connections.add(socket);
+				executor.execute(new Runnable() {
+					public void run() {
+						handleConnection(socket);
+					}
+				});
+			} catch (IOException e) {
+				// Servidor parado
+			}
+		}
+	}
+
+	/**
+	 * L os pedidos da ligao e processa cada um em paralelo. As respostas so escritas de forma sincronizada no output stream.
+	 *
+	 * @param socket
+	 */
+	private void handleConnection(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			final OutputStream out = socket.getOutputStream();
+			final boolean[] isBound = new boolean[1];
+			byte[] message;
+			while ((message = Ber.readElement(in)) != null) {
+				Ber.Reader ldapMessage = new Ber.Reader(message).read(Ber.SEQUENCE);
+				final int messageId = (int) ldapMessage.readInteger(Ber.INTEGER);
+				final int operation = ldapMessage.peekTag();
+				final Ber.Reader request = ldapMessage.readAny();
+				final Ber.Reader controls = (ldapMessage.hasMore() && ldapMessage.peekTag() == 0xA0 ? ldapMessage.readAny() : null);
+
+				if (operation == 0x42) { // UnbindRequest
+					break;
+				} else if (operation == 0x50) { // AbandonRequest
+					continue;
+				}
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							handleRequest(out, messageId, operation, request, controls, isBound);
+						} catch (IOException e) {
+							// Pedido invlido ou ligao fechada pelo cliente (neste caso a resposta tambm falha)
+							sendQuietly(out, messageId, result(responseTag(operation), PROTOCOL_ERROR, String.valueOf(e.getMessage())));
+						} catch (RuntimeException e) {
+							sendQuietly(out, messageId, result(responseTag(operation), PROTOCOL_ERROR, String.valueOf(e.getMessage())));
+						}
+					}
+				});
+			}
+		} catch (SocketException e) {
+			// Ligao fechada
+		} catch (RejectedExecutionException e) {
+			// Servidor parado durante a leitura do pedido
+		} catch (IOException e) {
+			// Pedido invlido, a ligao  fechada
+		} finally {
+			connections.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+
+	private void handleRequest(OutputStream out, int messageId, int operation, Ber.Reader request, Ber.Reader controls, boolean[] isBound) throws IOException {
+		operationCount.incrementAndGet();
+		simulateLatency();
+
+		int responseTag = responseTag(operation);
+		double failure = nextDouble();
+		if (failure < busyRate) {
+			send(out, messageId, result(responseTag, BUSY, "Server is busy (simulated)."));
+			return;
+		} else if (failure < busyRate + errorRate) {
+			send(out, messageId, result(responseTag, OTHER, "Simulated server error."));
+			return;
+		} else if (operation != 0x60 && !isBound[0]) {
+			send(out, messageId, result(responseTag, INSUFFICIENT_ACCESS_RIGHTS, "Bind required."));
+			return;
+		}
+
+		switch (operation) {
+		case 0x60:
+			request.readInteger(Ber.INTEGER); // version
+			String name = request.readString(Ber.OCTET_STRING);
+			String credentials = (request.hasMore() && request.peekTag() == 0x80 ? request.read(0x80).toUtf8() : "");
+			isBound[0] = DistinguishedName.valueOf(name).equals(DistinguishedName.valueOf(bindDN)) && password.equals(credentials);
+			send(out, messageId, result(responseTag, isBound[0] ? SUCCESS : INVALID_CREDENTIALS, isBound[0] ? "" : "Invalid credentials."));
+			break;
+		case 0x63:
+			search(out, messageId, request, controls);
+			break;
+		case 0x66:
+			send(out, messageId, result(responseTag, modify(request), ""));
+			break;
+		case 0x68:
+			DistinguishedName dn = DistinguishedName.valueOf(request.readString(Ber.OCTET_STRING));
+			send(out, messageId, result(responseTag, addEntry(dn, readAttributes(request.read(Ber.SEQUENCE))), ""));
+			break;
+		case 0x4A:
+			send(out, messageId, result(responseTag, deleteEntry(DistinguishedName.valueOf(request.toUtf8())), ""));
+			break;
+		default:
+			send(out, messageId, result(responseTag, PROTOCOL_ERROR, "Operation not supported."));
+			break;
+		}
+	}
+
+	/**
+	 * Processa um SearchRequest enviando as entradas encontradas e o SearchResultDone. As entradas candidatas so obtidas do ndice de igualdade (quando o filtro o permite) ou percorrendo as entradas do scope a partir do baseDN.</p>
+	 * Na pesquisa paginada a posio da pesquisa (Cursor) fica guardada no servidor e o cookie identifica-a, pelo que cada pgina continua onde a anterior terminou. Uma pgina de tamanho 0 abandona a pesquisa e um cookie desconhecido  respondido com unwillingToPerform (53).
+	 */
+	private void search(OutputStream out, int messageId, Ber.Reader request, Ber.Reader controls) throws IOException {
+		DistinguishedName base = DistinguishedName.valueOf(request.readString(Ber.OCTET_STRING));
+		int scope = (int) request.readInteger(Ber.ENUMERATED);
+		request.readInteger(Ber.ENUMERATED); // derefAliases
+		int sizeLimit = (int) request.readInteger(Ber.INTEGER);
+		request.readInteger(Ber.INTEGER); // timeLimit
+		boolean typesOnly = request.readBoolean();
+		Filter filter = Filter.parse(request);
+		List<String> requestedAttributes = new ArrayList<String>();
+		Ber.Reader attributes = request.read(Ber.SEQUENCE);
+		while (attributes.hasMore()) {
+			requestedAttributes.add(attributes.readString(Ber.OCTET_STRING).toLowerCase(Locale.ENGLISH));
+		}
+
+		int pageSize = -1;
+		String cookie = "";
+		if (controls != null) {
+			while (controls.hasMore()) {
+				Ber.Reader control = controls.read(Ber.SEQUENCE);
+				String oid = control.readString(Ber.OCTET_STRING);
+				if (control.hasMore() && control.peekTag() == Ber.BOOLEAN) {
+					control.readBoolean();
+				}
+				if (PAGED_RESULTS_OID.equals(oid) && control.hasMore()) {
+					Ber.Reader value = new Ber.Reader(control.read(Ber.OCTET_STRING).toBytes()).read(Ber.SEQUENCE);
+					pageSize = (int) value.readInteger(Ber.INTEGER);
+					cookie = value.readString(Ber.OCTET_STRING);
+				}
+			}
+		}
+
+		Cursor cursor = null;
+		if (cookie.length() > 0) {
+			cursor = cursors.remove(cookie);
+			if (cursor == null) {
+				send(out, messageId, result(0x65, UNWILLING_TO_PERFORM, "Unknown paged results cookie."));
+				return;
+			}
+		}
+		if (pageSize == 0) {
+			// Pesquisa paginada abandonada pelo cliente
+			sendPagedResultDone(out, messageId, "");
+			return;
+		}
+		if (cursor == null) {
+			Entry baseEntry = entries.get(base);
+			if (baseEntry == null && base.size() > 0) {
+				send(out, messageId, result(0x65, NO_SUCH_OBJECT, "No such object: " + base));
+				return;
+			}
+			cursor = new Cursor(getCandidates(baseEntry, base, scope, filter), base, scope, filter);
+		}
+
+		int limit = Integer.MAX_VALUE;
+		if (pageSize > 0) {
+			limit = pageSize;
+		}
+		if (maxPageSize > 0) {
+			limit = Math.min(limit, maxPageSize);
+		}
+		if (sizeLimit > 0) {
+			limit = Math.min(limit, sizeLimit);
+		}
+
+		int sent = 0;
+		Entry entry;
+		while ((entry = cursor.next()) != null) {
+			if (sent == limit) {
+				// Existem mais resultados, a entrada fica para a prxima pgina
+				cursor.pending = entry;
+				break;
+			}
+			send(out, messageId, entry.toSearchResultEntry(requestedAttributes, typesOnly));
+			sent++;
+		}
+
+		if (pageSize < 0) {
+			send(out, messageId, result(0x65, entry == null ? SUCCESS : SIZE_LIMIT_EXCEEDED, entry == null ? "" : "Size limit exceeded."));
+		} else if (entry == null) {
+			sendPagedResultDone(out, messageId, "");
+		} else {
+			String nextCookie = String.valueOf(cursorIds.incrementAndGet());
+			cursors.put(nextCookie, cursor);
+			sendPagedResultDone(out, messageId, nextCookie);
+		}
+	}
+
+	private static void sendPagedResultDone(OutputStream out, int messageId, String cookie) throws IOException {
+		byte[] controlValue = Ber.element(Ber.SEQUENCE, Ber.integer(Ber.INTEGER, 0), Ber.octetString(cookie));
+		byte[] control = Ber.element(Ber.SEQUENCE, Ber.octetString(PAGED_RESULTS_OID), Ber.octetString(controlValue));
+		send(out, messageId, result(0x65, SUCCESS, ""), Ber.element(0xA0, control));
+	}
+
+	/**
+	 * Obtem as entradas candidatas de uma pesquisa, sem as copiar: as entradas do ndice de igualdade, os filhos do baseDN (singleLevel) ou todas as entradas abaixo do baseDN (wholeSubtree). O scope e o filtro so verificados pelo Cursor.
+	 */
+	private Iterator<Entry> getCandidates(Entry baseEntry, DistinguishedName base, int scope, Filter filter) {
+		if (scope == 0) {
+			return (baseEntry == null ? Collections.<Entry> emptyList() : Collections.singletonList(baseEntry)).iterator();
+		}
+		Entry[] indexed = lookupIndex(filter);
+		if (indexed != null) {
+			return Arrays.asList(indexed).iterator();
+		}
+		if (scope == 1) {
+			return getChildren(base).iterator();
+		}
+		return new SubtreeIterator(baseEntry, base);
+	}
+
+	/**
+	 * Obtem as entradas do ndice de igualdade que satisfazem o filtro (uma igualdade num atributo indexado ou um and com uma destas igualdades). Devolve null se o filtro no puder utilizar os ndices.
+	 */
+	private Entry[] lookupIndex(Filter filter) {
+		if (filter.tag == 0xA3) {
+			Map<String, Entry[]> index = equalityIndexes.get(filter.attribute);
+			if (index != null) {
+				Entry[] indexed = index.get(normalize(filter.assertion));
+				return (indexed == null ? NO_ENTRIES : indexed);
+			}
+		} else if (filter.tag == 0xA0) {
+			for (Filter child : filter.children) {
+				Entry[] indexed = lookupIndex(child);
+				if (indexed != null) {
+					return indexed;
+				}
+			}
+		}
+		return null;
+	}
+
+	private Collection<Entry> getChildren(DistinguishedName dn) {
+		Map<DistinguishedName, Entry> entryChildren = children.get(dn);
+		return (entryChildren == null ? Collections.<Entry> emptyList() : entryChildren.values());
+	}
+
+	/**
+	 * Obtem a tag da resposta a um pedido LDAP.
+	 */
+	private static int responseTag(int operation) {
+		switch (operation) {
+		case 0x60: // BindRequest
+			return 0x61;
+		case 0x63: // SearchRequest
+			return 0x65;
+		case 0x66: // ModifyRequest
+			return 0x67;
+		case 0x68: // AddRequest
+			return 0x69;
+		case 0x4A: // DelRequest
+			return 0x6B;
+		default: // ExtendedResponse (tambm utilizada para pedidos no suportados)
+			return 0x78;
+		}
+	}
+
+	private static boolean isInScope(DistinguishedName dn, DistinguishedName base, int scope) {
+		switch (scope) {
+		case 0: // baseObject
+			return dn.equals(base);
+		case 1: // singleLevel
+			return dn.isChildOf(base);
+		default: // wholeSubtree
+			return dn.equals(base) || dn.isDescendantOf(base);
+		}
+	}
+
+	/**
+	 * Processa um ModifyRequest. Devolve o resultCode.
+	 */
+	private int modify(Ber.Reader request) throws IOException {
+		DistinguishedName dn = DistinguishedName.valueOf(request.readString(Ber.OCTET_STRING));
+		Entry entry = entries.get(dn);
+		if (entry == null) {
+			return NO_SUCH_OBJECT;
+		}
+		Ber.Reader changes = request.read(Ber.SEQUENCE);
+		synchronized (entry) {
+			Map<String, List<String>> modified = entry.copyAttributes();
+			while (changes.hasMore()) {
+				Ber.Reader change = changes.read(Ber.SEQUENCE);
+				int operation = (int) change.readInteger(Ber.ENUMERATED);
+				Map<String, List<String>> modification = readAttributes(change);
+				for (Map.Entry<String, List<String>> attribute : modification.entrySet()) {
+					String key = attribute.getKey().toLowerCase(Locale.ENGLISH);
+					List<String> current = modified.get(key);
+					List<String> values = attribute.getValue();
+					if (operation == 0) { // add
+						List<String> result = (current == null ? new ArrayList<String>() : new ArrayList<String>(current));
+						for (String value : values) {
+							if (Entry.containsIgnoreCase(result, value)) {
+								return ATTRIBUTE_OR_VALUE_EXISTS;
+							}
+							result.add(value);
+						}
+						modified.put(key, result);
+					} else if (operation == 1) { // delete
+						if (current != null && !values.isEmpty()) {
+							List<String> result = new ArrayList<String>(current);
+							for (String value : values) {
+								Entry.removeIgnoreCase(result, value);
+							}
+							if (result.isEmpty()) {
+								modified.remove(key);
+							} else {
+								modified.put(key, result);
+							}
+						} else {
+							modified.remove(key);
+						}
+					} else { // replace
+						if (values.isEmpty()) {
+							modified.remove(key);
+						} else {
+							modified.put(key, new ArrayList<String>(values));
+						}
+					}
+					entry.names.put(key, attribute.getKey());
+				}
+			}
+			synchronized (entries) {
+				if (entries.get(dn) != entry) {
+					// Entrada removida entretanto
+					return NO_SUCH_OBJECT;
+				}
+				removeFromIndexes(entry);
+				entry.attributes = modified;
+				addToIndexes(entry);
+			}
+		}
+		return SUCCESS;
+	}
+
+	private int addEntry(DistinguishedName dn, Map<String, List<String>> attributes) {
+		Entry entry = new Entry(dn);
+		for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+			String key = attribute.getKey().toLowerCase(Locale.ENGLISH);
+			entry.names.put(key, attribute.getKey());
+			entry.attributes.put(key, new ArrayList<String>(attribute.getValue()));
+		}
+		if (dn.size() == 0) {
+			return UNWILLING_TO_PERFORM;
+		}
+		DistinguishedName parent = dn.getParent();
+		synchronized (entries) {
+			if (entries.containsKey(dn)) {
+				return ENTRY_ALREADY_EXISTS;
+			}
+			if (parent.size() > 0 && !entries.containsKey(parent)) {
+				return NO_SUCH_OBJECT;
+			}
+			Map<DistinguishedName, Entry> siblings = children.get(parent);
+			if (siblings == null) {
+				siblings = new ConcurrentHashMap<DistinguishedName, Entry>();
+				children.put(parent, siblings);
+			}
+			entries.put(dn, entry);
+			siblings.put(dn, entry);
+			addToIndexes(entry);
+		}
+		return SUCCESS;
+	}
+
+	private int deleteEntry(DistinguishedName dn) {
+		synchronized (entries) {
+			Entry entry = entries.get(dn);
+			if (entry == null) {
+				return NO_SUCH_OBJECT;
+			}
+			if (!getChildren(dn).isEmpty()) {
+				return NOT_ALLOWED_ON_NON_LEAF;
+			}
+			entries.remove(dn);
+			children.remove(dn);
+			Map<DistinguishedName, Entry> siblings = children.get(dn.getParent());
+			if (siblings != null) {
+				siblings.remove(dn);
+			}
+			removeFromIndexes(entry);
+		}
+		return SUCCESS;
+	}
+
+	/**
+	 * Adiciona a entrada aos ndices de igualdade com os valores atuais dos seus atributos. Invocado com o lock de entries.
+	 */
+	private void addToIndexes(Entry entry) {
+		for (Map.Entry<String, Map<String, Entry[]>> index : equalityIndexes.entrySet()) {
+			List<String> values = entry.attributes.get(index.getKey());
+			if (values == null) {
+				continue;
+			}
+			for (String value : values) {
+				String key = normalize(value);
+				Entry[] indexed = index.getValue().get(key);
+				if (indexed == null) {
+					index.getValue().put(key, new Entry[] { entry });
+				} else if (!Arrays.asList(indexed).contains(entry)) {
+					Entry[] updated = Arrays.copyOf(indexed, indexed.length + 1);
+					updated[indexed.length] = entry;
+					index.getValue().put(key, updated);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove a entrada dos ndices de igualdade com os valores atuais dos seus atributos. Invocado com o lock de entries.
+	 */
+	private void removeFromIndexes(Entry entry) {
+		for (Map.Entry<String, Map<String, Entry[]>> index : equalityIndexes.entrySet()) {
+			List<String> values = entry.attributes.get(index.getKey());
+			if (values == null) {
+				continue;
+			}
+			for (String value : values) {
+				String key = normalize(value);
+				Entry[] indexed = index.getValue().get(key);
+				if (indexed == null) {
+					continue;
+				}
+				List<Entry> updated = new ArrayList<Entry>(Arrays.asList(indexed));
+				updated.remove(entry);
+				if (updated.isEmpty()) {
+					index.getValue().remove(key);
+				} else {
+					index.getValue().put(key, updated.toArray(new Entry[updated.size()]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Chave de um valor nos ndices de igualdade: dois valores tm a mesma chave se e s se forem iguais para o compareToIgnoreCase() utilizado pelo Filter.
+	 */
+	private static String normalize(String value) {
+		char[] chars = value.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * L uma lista de atributos (SEQUENCE OF SEQUENCE { type, SET OF value }).
+	 */
+	private static Map<String, List<String>> readAttributes(Ber.Reader attributes) throws IOException {
+		Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+		while (attributes.hasMore()) {
+			Ber.Reader attribute = attributes.read(Ber.SEQUENCE);
+			String type = attribute.readString(Ber.OCTET_STRING);
+			List<String> values = new ArrayList<String>();
+			Ber.Reader set = attribute.read(Ber.SET);
+			while (set.hasMore()) {
+				values.add(set.readString(Ber.OCTET_STRING));
+			}
+			result.put(type, values);
+		}
+		return result;
+	}
+
+	private void simulateLatency() {
+		int delay = latencyMillis;
+		if (jitterMillis > 0) {
+			synchronized (random) {
+				delay += random.nextInt(jitterMillis + 1);
+			}
+		}
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private double nextDouble() {
+		synchronized (random) {
+			return random.nextDouble();
+		}
+	}
+
+	private static byte[] result(int tag, int resultCode, String diagnosticMessage) {
+		return Ber.element(tag, Ber.integer(Ber.ENUMERATED, resultCode), Ber.octetString(""), Ber.octetString(diagnosticMessage));
+	}
+
+	private static void send(OutputStream out, int messageId, byte[]... protocolOp) throws IOException {
+		byte[][] contents = new byte[protocolOp.length + 1][];
+		contents[0] = Ber.integer(Ber.INTEGER, messageId);
+		System.arraycopy(protocolOp, 0, contents, 1, protocolOp.length);
+		byte[] message = Ber.element(Ber.SEQUENCE, contents);
+		synchronized (out) {
+			out.write(message);
+			out.flush();
+		}
+	}
+
+	private static void sendQuietly(OutputStream out, int messageId, byte[] protocolOp) {
+		try {
+			send(out, messageId, protocolOp);
+		} catch (IOException e) {
+			// Ligao fechada pelo cliente
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Ligao j se encontrava fechada
+		}
+	}
+
+	/**
+	 * Entrada do diretrio. Os atributos so guardados com o nome em minsculas e o nome original em names.
+	 */
+	private static final class Entry {
+
+		private final DistinguishedName dn;
+		private final Map<String, String> names;
+		private volatile Map<String, List<String>> attributes;
+
+		Entry(DistinguishedName dn) {
+			this.dn = dn;
+			this.names = Collections.synchronizedMap(new HashMap<String, String>());
+			this.attributes = new LinkedHashMap<String, List<String>>();
+		}
+
+		Map<String, List<String>> copyAttributes() {
+			return new LinkedHashMap<String, List<String>>(attributes);
+		}
+
+		byte[] toSearchResultEntry(List<String> requestedAttributes, boolean typesOnly) {
+			Map<String, List<String>> current = attributes;
+			boolean allAttributes = requestedAttributes.isEmpty() || requestedAttributes.contains("*");
+			List<byte[]> encoded = new ArrayList<byte[]>();
+			for (Map.Entry<String, List<String>> attribute : current.entrySet()) {
+				if (!allAttributes && !requestedAttributes.contains(attribute.getKey())) {
+					continue;
+				}
+				List<String> values = attribute.getValue();
+				byte[][] encodedValues = new byte[typesOnly ? 0 : values.size()][];
+				for (int i = 0; i < encodedValues.length; i++) {
+					encodedValues[i] = Ber.octetString(values.get(i));
+				}
+				encoded.add(Ber.element(Ber.SEQUENCE, Ber.octetString(names.get(attribute.getKey())), Ber.element(Ber.SET, encodedValues)));
+			}
+			return Ber.element(0x64, Ber.octetString(dn.toString()), Ber.element(Ber.SEQUENCE, encoded.toArray(new byte[encoded.size()][])));
+		}
+
+		static boolean containsIgnoreCase(List<String> values, String value) {
+			for (String current : values) {
+				if (current.equalsIgnoreCase(value)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		static void removeIgnoreCase(List<String> values, String value) {
+			for (int i = 0; i < values.size(); i++) {
+				if (values.get(i).equalsIgnoreCase(value)) {
+					values.remove(i);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Posio de uma pesquisa: percorre as entradas candidatas devolvendo as que esto no scope e satisfazem o filtro. Nas pesquisas paginadas fica guardado entre pginas.
+	 */
+	private static final class Cursor {
+
+		private final Iterator<Entry> candidates;
+		private final DistinguishedName base;
+		private final int scope;
+		private final Filter filter;
+		private Entry pending;
+
+		Cursor(Iterator<Entry> candidates, DistinguishedName base, int scope, Filter filter) {
+			this.candidates = candidates;
+			this.base = base;
+			this.scope = scope;
+			this.filter = filter;
+			this.pending = null;
+		}
+
+		/**
+		 * Obtem a prxima entrada encontrada ou null se no existirem mais.
+		 */
+		Entry next() {
+			if (pending != null) {
+				Entry entry = pending;
+				pending = null;
+				return entry;
+			}
+			while (candidates.hasNext()) {
+				Entry entry = candidates.next();
+				if (isInScope(entry.dn, base, scope) && filter.matches(entry)) {
+					return entry;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Percorre (em profundidade) a entrada base e todas as entradas abaixo dela atravs do ndice de filhos, mantendo apenas um iterador por nvel.
+	 */
+	private final class SubtreeIterator implements Iterator<Entry> {
+
+		private final Deque<Iterator<Entry>> levels;
+		private Entry next;
+
+		SubtreeIterator(Entry baseEntry, DistinguishedName base) {
+			this.levels = new ArrayDeque<Iterator<Entry>>();
+			this.levels.push(getChildren(base).iterator());
+			this.next = baseEntry;
+		}
+
+		public boolean hasNext() {
+			while (next == null && !levels.isEmpty()) {
+				Iterator<Entry> level = levels.peek();
+				if (level.hasNext()) {
+					next = level.next();
+					levels.push(getChildren(next.dn).iterator());
+				} else {
+					levels.pop();
+				}
+			}
+			return next != null;
+		}
+
+		public Entry next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entry entry = next;
+			next = null;
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Filtro LDAP (RFC 4511) descodificado uma nica vez por pesquisa e avaliado para cada entrada. As comparaes so case-insensitive.
+	 */
+	private static final class Filter {
+
+		private final int tag;
+		private final String attribute;
+		private final String assertion;
+		private final List<Filter> children;
+		private final List<Integer> kinds;
+		private final List<String> parts;
+
+		private Filter(int tag, String attribute, String assertion, List<Filter> children, List<Integer> kinds, List<String> parts) {
+			this.tag = tag;
+			this.attribute = attribute;
+			this.assertion = assertion;
+			this.children = children;
+			this.kinds = kinds;
+			this.parts = parts;
+		}
+
+		static Filter parse(Ber.Reader filter) throws IOException {
+			int tag = filter.peekTag();
+			Ber.Reader content = filter.readAny();
+			switch (tag) {
+			case 0xA0: // and
+			case 0xA1: // or
+			case 0xA2: // not
+				List<Filter> children = new ArrayList<Filter>();
+				while (content.hasMore()) {
+					children.add(parse(content));
+				}
+				return new Filter(tag, null, null, children, null, null);
+			case 0xA3: // equalityMatch
+			case 0xA5: // greaterOrEqual
+			case 0xA6: // lessOrEqual
+			case 0xA8: // approxMatch
+				String attribute = content.readString(Ber.OCTET_STRING).toLowerCase(Locale.ENGLISH);
+				return new Filter(tag, attribute, content.readString(Ber.OCTET_STRING), null, null, null);
+			case 0xA4: // substrings
+				String type = content.readString(Ber.OCTET_STRING).toLowerCase(Locale.ENGLISH);
+				Ber.Reader substrings = content.read(Ber.SEQUENCE);
+				List<Integer> kinds = new ArrayList<Integer>();
+				List<String> parts = new ArrayList<String>();
+				while (substrings.hasMore()) {
+					kinds.add(substrings.peekTag());
+					parts.add(substrings.readAny().toUtf8().toLowerCase(Locale.ROOT));
+				}
+				return new Filter(tag, type, null, null, kinds, parts);
+			case 0x87: // present
+				return new Filter(tag, content.toUtf8().toLowerCase(Locale.ENGLISH), null, null, null, null);
+			default: // extensibleMatch no suportado
+				return new Filter(tag, null, null, null, null, null);
+			}
+		}
+
+		boolean matches(Entry entry) {
+			Map<String, List<String>> attributes = entry.attributes;
+			switch (tag) {
+			case 0xA0: // and
+				for (Filter child : children) {
+					if (!child.matches(entry)) {
+						return false;
+					}
+				}
+				return true;
+			case 0xA1: // or
+				for (Filter child : children) {
+					if (child.matches(entry)) {
+						return true;
+					}
+				}
+				return false;
+			case 0xA2: // not
+				return !children.isEmpty() && !children.get(0).matches(entry);
+			case 0xA3: // equalityMatch
+			case 0xA5: // greaterOrEqual
+			case 0xA6: // lessOrEqual
+			case 0xA8: // approxMatch
+				List<String> values = attributes.get(attribute);
+				if (values == null) {
+					return false;
+				}
+				for (String value : values) {
+					int comparison = value.compareToIgnoreCase(assertion);
+					if ((tag == 0xA5 && comparison >= 0) || (tag == 0xA6 && comparison <= 0) || ((tag == 0xA3 || tag == 0xA8) && comparison == 0)) {
+						return true;
+					}
+				}
+				return false;
+			case 0xA4: // substrings
+				List<String> candidates = attributes.get(attribute);
+				if (candidates == null) {
+					return false;
+				}
+				for (String candidate : candidates) {
+					if (matchesSubstrings(candidate.toLowerCase(Locale.ROOT))) {
+						return true;
+					}
+				}
+				return false;
+			case 0x87: // present
+				return attribute.equals("objectclass") || attributes.containsKey(attribute);
+			default:
+				return false;
+			}
+		}
+
+		private boolean matchesSubstrings(String value) {
+			int position = 0;
+			for (int i = 0; i < parts.size(); i++) {
+				String part = parts.get(i);
+				int kind = kinds.get(i);
+				if (kind == 0x80) { // initial
+					if (!value.startsWith(part)) {
+						return false;
+					}
+					position = part.length();
+				} else if (kind == 0x81) { // any
+					int index = value.indexOf(part, position);
+					if (index < 0) {
+						return false;
+					}
+					position = index + part.length();
+				} else { // final
+					return value.length() - part.length() >= position && value.endsWith(part);
+				}
+			}
+			return true;
+		}
+	}
+}